@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2008-2019 Haulmont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.haulmont.fts.core.app;
+
+/**
+ * Background thread that processes the queue continuously, if enabled by
+ * {@link com.haulmont.fts.global.FtsConfig#getIndexingDaemonEnabled()}. The thread is woken up after changes are
+ * queued in this JVM and polls the queue otherwise.
+ */
+public interface FtsIndexingDaemon {
+
+    String NAME = "fts_IndexingDaemon";
+
+    /**
+     * Signals that items have been added to the queue.
+     */
+    void wakeUp();
+
+    boolean isRunning();
+
+    /**
+     * @return the size of the batches processed by the daemon, see {@link FtsManagerAPI#getCurrentBatchSize()}
+     */
+    int getBatchSize();
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2008-2019 Haulmont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.haulmont.fts.core.app;
+
+import com.haulmont.cuba.core.sys.events.AppContextStartedEvent;
+import com.haulmont.fts.global.FtsConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+
+@Component(FtsIndexingDaemon.NAME)
+public class FtsIndexingDaemonBean implements FtsIndexingDaemon {
+
+    private static final Logger log = LoggerFactory.getLogger(FtsIndexingDaemonBean.class);
+
+    /**
+     * Maximum pause after failures to process the queue, e.g. if the database is not available
+     */
+    protected static final long MAX_ERROR_PAUSE = 60000;
+
+    @Inject
+    protected FtsManagerAPI manager;
+
+    @Inject
+    protected FtsConfig ftsConfig;
+
+    protected final Object monitor = new Object();
+
+    protected boolean signalled;
+
+    protected volatile Thread thread;
+
+    @EventListener(AppContextStartedEvent.class)
+    protected void start() {
+        if (!ftsConfig.getIndexingDaemonEnabled()) {
+            return;
+        }
+        thread = new Thread(this::run, "fts-indexing-daemon");
+        thread.setDaemon(true);
+        thread.start();
+        log.info("FTS indexing daemon started");
+    }
+
+    @PreDestroy
+    protected void stop() {
+        Thread t = thread;
+        if (t != null) {
+            thread = null;
+            t.interrupt();
+        }
+    }
+
+    @Override
+    public void wakeUp() {
+        if (thread == null) {
+            return;
+        }
+        synchronized (monitor) {
+            signalled = true;
+            monitor.notifyAll();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return thread != null;
+    }
+
+    @Override
+    public int getBatchSize() {
+        return manager.getCurrentBatchSize();
+    }
+
+    protected void run() {
+        long errorPause = 0;
+        try {
+            while (thread == Thread.currentThread()) {
+                if (!manager.isEnabled()) {
+                    await(ftsConfig.getIndexingDaemonPollInterval());
+                    continue;
+                }
+                if (isHeapExhausted()) {
+                    log.debug("Heap usage is above the limit, indexing is paused");
+                    Thread.sleep(ftsConfig.getIndexingDaemonPollInterval());
+                    continue;
+                }
+                if (isDatabaseOverloaded()) {
+                    log.debug("Loading of the queue took {} ms, indexing is paused", manager.getLastQueueLoadTime());
+                    Thread.sleep(ftsConfig.getIndexingDaemonPollInterval());
+                    // the load time is measured again by the next batch
+                }
+
+                int count;
+                try {
+                    // the batch size is adapted by the manager to the measured indexing cost
+                    count = manager.processQueue();
+                    errorPause = 0;
+                } catch (RuntimeException e) {
+                    errorPause = errorPause == 0 ? ftsConfig.getIndexingDaemonPollInterval()
+                            : Math.min(errorPause * 2, MAX_ERROR_PAUSE);
+                    log.error("Error processing the FTS queue, next attempt in {} ms", errorPause, e);
+                    Thread.sleep(errorPause);
+                    continue;
+                }
+
+                if (count == 0) {
+                    // the queue is drained or is processed by another thread, wait for new items
+                    await(ftsConfig.getIndexingDaemonPollInterval());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.info("FTS indexing daemon stopped");
+    }
+
+    /**
+     * Checks the heap usage after the last garbage collection, as the current usage includes garbage not collected yet
+     */
+    protected boolean isHeapExhausted() {
+        int maxUsage = ftsConfig.getIndexingDaemonMaxHeapUsage();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() != MemoryType.HEAP || !pool.isValid()) {
+                continue;
+            }
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (usage != null && usage.getMax() > 0 && usage.getUsed() * 100 / usage.getMax() > maxUsage) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected boolean isDatabaseOverloaded() {
+        int maxLoadTime = ftsConfig.getIndexingDaemonMaxQueueLoadTime();
+        return maxLoadTime > 0 && manager.getLastQueueLoadTime() > maxLoadTime;
+    }
+
+    protected void await(long timeout) throws InterruptedException {
+        synchronized (monitor) {
+            if (!signalled) {
+                monitor.wait(timeout);
+            }
+            signalled = false;
+        }
+    }
+}
@@ -17,41 +17,58 @@ package com.haulmont.fts.core.app;
 
 import com.google.common.base.Strings;
 import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.haulmont.bali.util.Preconditions;
 import com.haulmont.chile.core.model.MetaClass;
 import com.haulmont.chile.core.model.MetaProperty;
 import com.haulmont.cuba.core.*;
+import com.haulmont.cuba.core.app.ConfigStorageAPI;
 import com.haulmont.cuba.core.app.FtsSender;
 import com.haulmont.cuba.core.app.ServerInfoAPI;
 import com.haulmont.cuba.core.entity.Entity;
 import com.haulmont.cuba.core.entity.FtsChangeType;
 import com.haulmont.cuba.core.entity.FtsQueue;
 import com.haulmont.cuba.core.entity.HasUuid;
+import com.haulmont.cuba.core.entity.IdProxy;
 import com.haulmont.cuba.core.global.AppBeans;
+import com.haulmont.cuba.core.global.DbmsType;
 import com.haulmont.cuba.core.global.Metadata;
 import com.haulmont.cuba.core.global.Scripting;
 import com.haulmont.cuba.core.global.Stores;
+import com.haulmont.cuba.core.global.TimeSource;
+import com.haulmont.cuba.core.global.UserSessionSource;
 import com.haulmont.cuba.core.sys.AppContext;
+import com.haulmont.cuba.core.sys.SecurityContext;
+import com.haulmont.cuba.core.sys.SecurityContextAwareRunnable;
 import com.haulmont.cuba.core.sys.persistence.DbTypeConverter;
 import com.haulmont.cuba.security.app.Authenticated;
 import com.haulmont.cuba.security.app.Authentication;
 import com.haulmont.fts.core.sys.*;
+import com.haulmont.fts.global.EntityInfo;
 import com.haulmont.fts.global.FtsConfig;
-import org.apache.commons.lang3.BooleanUtils;
+import groovy.lang.Binding;
+import groovy.lang.Script;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.lucene.index.IndexFormatTooOldException;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.Directory;
 import org.apache.lucene.util.Version;
+import org.codehaus.groovy.runtime.InvokerHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToIntFunction;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -69,8 +86,107 @@ public class FtsManager implements FtsManagerAPI {
     protected final ReentrantLock reindexLock = new ReentrantLock();
     protected volatile boolean reindexing;
     protected volatile Queue<String> reindexEntitiesQueue = new ConcurrentLinkedQueue<>();
+    protected volatile boolean reindexQueueRestored;
 
-    protected static final int DEL_CHUNK = 10;
+    protected volatile String directReindexEntityName;
+    protected final AtomicInteger directReindexCount = new AtomicInteger();
+
+    /**
+     * Last change type of instances indexed from the queue while the index is rebuilt in the shadow directory, null if
+     * the rebuild is not running. Limited by {@link #MAX_SHADOW_REBUILD_CHANGES}.
+     */
+    protected volatile Map<EntityInfo, FtsChangeType> shadowRebuildChanges;
+    protected volatile boolean shadowRebuildOverflow;
+    protected volatile long directReindexStartTs;
+
+    /**
+     * Maximum number of ids in a delete statement by {@link DbmsType}, if not set in
+     * {@link FtsConfig#getQueueDeleteChunkSize()}
+     */
+    protected static final Map<String, Integer> DEL_CHUNK_BY_DBMS = ImmutableMap.of(
+            "oracle", 1000,
+            "mssql", 2000);
+
+    protected static final int DEL_CHUNK = 5000;
+
+    protected static final int CLAIM_CHUNK = 500;
+
+    protected static final String CLAIM_TOKEN_PREFIX = "~claim|";
+
+    protected static final String QUEUE_WATERMARK_PROP_PREFIX = "fts.queueWatermark.";
+
+    /**
+     * Maximum number of instances changed during the index rebuild, see {@link #addShadowRebuildChanges(List)}
+     */
+    protected static final int MAX_SHADOW_REBUILD_CHANGES = 100000;
+
+    protected static final long QUEUE_PURGE_INTERVAL = 60000;
+
+    protected static final String REINDEX_CURSOR_PROP_PREFIX = "fts.reindexCursor.";
+
+    protected static final String REINDEX_ENTITIES_PROP = "fts.reindexEntities";
+
+    protected static final String REINDEX_HOST_PROP = "fts.reindexHost";
+
+    /**
+     * Start time, number of processed and total number of instances of the async reindex
+     */
+    protected static final String REINDEX_JOB_PROP = "fts.reindexJob";
+
+    /**
+     * Number of processed and total number of instances of an entity
+     */
+    protected static final String REINDEX_PROGRESS_PROP_PREFIX = "fts.reindexProgress.";
+
+    protected static final long PENDING_CHANGES_CHECK_INTERVAL = 50;
+
+    protected volatile ThreadPoolExecutor indexingExecutor;
+
+    protected volatile ThreadPoolExecutor reindexExecutor;
+
+    protected volatile ThreadPoolExecutor queueProcessingExecutor;
+
+    /**
+     * Committed changes passed to the indexing in memory, by queue item id
+     */
+    protected final Map<UUID, FtsQueue> committedChanges = new LinkedHashMap<>();
+
+    /**
+     * Queue items that are indexed but not committed yet. Modified holding the {@link #writeLock}.
+     */
+    protected final List<FtsQueue> uncommittedItems = Collections.synchronizedList(new ArrayList<>());
+
+    protected volatile long lastCommitTs = System.currentTimeMillis();
+
+    /**
+     * Size of the last full batch if the batch size is adaptive
+     */
+    protected volatile int lastBatchSize;
+
+    /**
+     * Time in milliseconds the last loading of queued items took
+     */
+    protected volatile long lastQueueLoadTime;
+
+    /**
+     * Queue items that failed to be indexed, by id
+     */
+    protected final Map<UUID, FailedItem> failedItems = new ConcurrentHashMap<>();
+
+    /**
+     * Items of the current batch that were not indexed because of a lack of resources. Guarded by the
+     * {@link #writeLock}.
+     */
+    protected final Set<FtsQueue> postponedItems = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Positions of this host in the lanes of the shared queue. Changed holding the {@link #writeLock}.
+     */
+    protected final SharedQueueLane interactiveSharedLane = new SharedQueueLane(false);
+    protected final SharedQueueLane reindexSharedLane = new SharedQueueLane(true);
+    protected volatile boolean queueWatermarkLoaded;
+    protected volatile boolean queueWatermarkChanged;
+    protected volatile long lastQueuePurgeTs;
 
     @Inject
     protected FtsConfig ftsConfig;
@@ -89,6 +205,18 @@ public class FtsManager implements FtsManagerAPI {
     @Inject
     protected Metadata metadata;
 
+    @Inject
+    protected TimeSource timeSource;
+
+    @Inject
+    protected UserSessionSource userSessionSource;
+
+    @Inject
+    protected ConfigStorageAPI configStorage;
+
+    @Inject
+    protected LuceneSearcher luceneSearcher;
+
     @Inject
     protected FtsSender ftsSender;
 
@@ -145,6 +273,7 @@ public class FtsManager implements FtsManagerAPI {
 
     @Override
     public Queue<String> getReindexEntitiesQueue() {
+        restoreReindexQueue();
         return reindexEntitiesQueue;
     }
 
@@ -185,7 +314,7 @@ public class FtsManager implements FtsManagerAPI {
             Map<String, Object> params = new HashMap<>();
             params.put("entity", entity);
             params.put("searchables", list);
-            scripting.evaluateGroovy(descr.getSearchablesScript(), params);
+            runScript(descr.getSearchablesScript(), descr.getSearchablesScriptClass(), params);
         }
 
         return list;
@@ -194,23 +323,86 @@ public class FtsManager implements FtsManagerAPI {
     protected boolean runSearchableIf(Entity entity, EntityDescr descr) {
         Map<String, Object> params = new HashMap<>();
         params.put("entity", entity);
-        Boolean value = scripting.evaluateGroovy(descr.getSearchableIfScript(), params);
-        return BooleanUtils.isTrue(value);
+        Object value = runScript(descr.getSearchableIfScript(), descr.getSearchableIfScriptClass(), params);
+        return Boolean.TRUE.equals(value);
+    }
+
+    /**
+     * Runs a new instance of the compiled script class with its own binding, so the class can be used by several
+     * threads. The script text is evaluated if it was not compiled.
+     */
+    protected Object runScript(String scriptText, @Nullable Class<? extends Script> scriptClass,
+                               Map<String, Object> params) {
+        if (scriptClass == null) {
+            return scripting.evaluateGroovy(scriptText, params);
+        }
+        return InvokerHelper.createScript(scriptClass, new Binding(params)).run();
     }
 
     @Override
     public int processQueue() {
+        return processQueue(getNextBatchSize());
+    }
+
+    /**
+     * @return {@link FtsConfig#getIndexingBatchSize()} or, if the batch size is adaptive, twice the size of the
+     * last batch limited by {@link FtsConfig#getIndexingMaxBatchSize()}
+     */
+    protected int getNextBatchSize() {
+        int configured = ftsConfig.getIndexingBatchSize();
+        if (!isAdaptiveBatchSize()) {
+            return configured;
+        }
+        int last = lastBatchSize > 0 ? lastBatchSize : configured;
+        return Math.min(last * 2, Math.max(ftsConfig.getIndexingMaxBatchSize(), configured));
+    }
+
+    protected boolean isAdaptiveBatchSize() {
+        return ftsConfig.getIndexingBatchTime() > 0 || ftsConfig.getIndexingBatchMemory() > 0;
+    }
+
+    /**
+     * Limits loaded items to the number that is expected to be indexed within {@link FtsConfig#getIndexingBatchTime()}
+     * and {@link FtsConfig#getIndexingBatchMemory()}, according to the costs measured by the indexer for each entity.
+     */
+    protected List<FtsQueue> limitByIndexingCost(List<FtsQueue> list, int batchSize) {
+        if (!isAdaptiveBatchSize() || list.isEmpty()) {
+            return list;
+        }
+        // documents of different entities are created in parallel
+        long timeBudget = ftsConfig.getIndexingBatchTime() * 1_000_000L * Math.max(ftsConfig.getIndexingThreads(), 1);
+        long sizeBudget = ftsConfig.getIndexingBatchMemory() * 1024L * 1024L;
+        List<String> entityNames = list.stream().map(FtsQueue::getEntityName).collect(Collectors.toList());
+        int count = luceneIndexer.getCostStats().countWithinBudget(entityNames, timeBudget, sizeBudget);
+        if (count < list.size()) {
+            log.debug("Batch is limited to {} of {} loaded items by the indexing cost", count, list.size());
+            lastBatchSize = count;
+            return new ArrayList<>(list.subList(0, count));
+        }
+        if (list.size() >= batchSize) {
+            lastBatchSize = batchSize;
+        }
+        return list;
+    }
+
+    @Override
+    public int getCurrentBatchSize() {
+        return isAdaptiveBatchSize() && lastBatchSize > 0 ? lastBatchSize : ftsConfig.getIndexingBatchSize();
+    }
+
+    @Override
+    public long getLastQueueLoadTime() {
+        return lastQueueLoadTime;
+    }
+
+    @Override
+    public int processQueue(int batchSize) {
         if (!isApplicationContextStarted())
             return 0;
 
         if (!isEnabled())
             return 0;
 
-        if (!reindexEntitiesQueue.isEmpty()) {
-            log.info("Unable to process queue: there are entities that are waiting for reindex");
-            return 0;
-        }
-
         log.debug("Start processing queue");
         int count = 0;
         boolean locked = writeLock.tryLock();
@@ -223,12 +415,41 @@ public class FtsManager implements FtsManagerAPI {
         try {
             writing = true;
 
-            List<FtsQueue> list = loadQueuedItems();
-            list = new ArrayList<>(list);
+            long loadStart = System.currentTimeMillis();
+            List<FtsQueue> list = loadQueuedItems(batchSize);
+            lastQueueLoadTime = System.currentTimeMillis() - loadStart;
             if (!list.isEmpty()) {
-                count = indexFtsQueueItems(list);
-                removeQueuedItems(list);
+                // several changes of the same instance are indexed once, superseded items are removed from the queue
+                // together with the effective one, or kept in the queue if the effective item was not indexed
+                QueuedItemsCoalescer coalescer = new QueuedItemsCoalescer(list);
+                List<FtsQueue> effectiveItems = new ArrayList<>(coalescer.getEffectiveItems());
+                postponedItems.clear();
+                indexFtsQueueItems(effectiveItems);
+                addShadowRebuildChanges(effectiveItems);
+                List<FtsQueue> processedItems = coalescer.withSupersededItems(effectiveItems);
+                registerIndexingAttempts(coalescer, effectiveItems);
+                List<FtsQueue> removedItems = processedItems;
+                if (isSharedQueue()) {
+                    // items of the shared queue are kept for other hosts
+                    advanceQueueWatermark(list, processedItems);
+                    removedItems = processedItems.stream()
+                            .filter(item -> item.getIndexingHost() != null)
+                            .collect(Collectors.toList());
+                }
+                if (isCommitDeferred()) {
+                    uncommittedItems.addAll(removedItems);
+                } else {
+                    removeQueuedItems(removedItems);
+                    saveQueueWatermark();
+                }
+                count = processedItems.size();
+                if (isQueueClaiming() && processedItems.size() < list.size()) {
+                    List<FtsQueue> notProcessed = new ArrayList<>(list);
+                    notProcessed.removeAll(processedItems);
+                    releaseQueuedItems(notProcessed);
+                }
             }
+            commitIfNeeded();
         } finally {
             writeLock.unlock();
             writing = false;
@@ -238,186 +459,1023 @@ public class FtsManager implements FtsManagerAPI {
         return count;
     }
 
-    protected boolean isApplicationContextStarted() {
-        return AppContext.isStarted();
+    @Override
+    public boolean awaitPendingChanges(long timeoutMillis) {
+        if (!isApplicationContextStarted() || !isEnabled()) {
+            return false;
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        Date queuedBefore = timeSource.currentTimestamp();
+        // the queue is processed by the indexing threads, the caller only waits
+        try {
+            while (hasQueuedItems(queuedBefore)) {
+                if (System.currentTimeMillis() + PENDING_CHANGES_CHECK_INTERVAL > deadline) {
+                    return false;
+                }
+                requestQueueProcessing();
+                Thread.sleep(PENDING_CHANGES_CHECK_INTERVAL);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        long remaining = deadline - System.currentTimeMillis();
+        return indexSearcherProvider.waitForGeneration(luceneIndexer.getLastSequenceNumber(), (int) Math.max(remaining, 1));
     }
 
-    protected List<FtsQueue> loadQueuedItems() {
-        boolean useServerId = !ftsConfig.getIndexingHosts().isEmpty();
-        int maxSize = ftsConfig.getIndexingBatchSize();
-        return persistence.callInTransaction(em -> {
-            String queryString = format("select q from sys$FtsQueue q where q.fake = false and %s order by q.createTs",
-                    (useServerId ? "q.indexingHost = ?1" : "q.indexingHost is null"));
-            TypedQuery<FtsQueue> query = em.createQuery(queryString, FtsQueue.class);
-            if (useServerId)
-                query.setParameter(1, serverId);
-            query.setMaxResults(maxSize);
+    /**
+     * Wakes up the indexing daemon if it is running, otherwise processes the queue in a background thread.
+     */
+    protected void requestQueueProcessing() {
+        FtsIndexingDaemon indexingDaemon = AppBeans.get(FtsIndexingDaemon.NAME);
+        if (indexingDaemon.isRunning()) {
+            indexingDaemon.wakeUp();
+            return;
+        }
+        getQueueProcessingExecutor().execute(() -> {
+            try {
+                // if the queue is being processed by another thread, it will take the changes from memory
+                int count;
+                do {
+                    count = processQueue();
+                } while (count > 0 && !committedChanges.isEmpty());
+            } catch (RuntimeException e) {
+                log.error("Error processing the queue", e);
+            }
+        });
+    }
+
+    /**
+     * @return true if there are items that are queued before the given time and are not indexed yet
+     */
+    protected boolean hasQueuedItems(Date queuedBefore) {
+        // in the claiming mode items claimed by other consumers are pending too
+        boolean claiming = isQueueClaiming();
+        // only changes of the caller are waited for, the reindex lane and changes of other users can be long
+        String login = userSessionSource.checkCurrentUserSession()
+                ? userSessionSource.getUserSession().getUser().getLogin() : null;
+        List<UUID> ids = persistence.callInTransaction(em -> {
+            String hostCondition = claiming ? "" : " and " + getQueueHostCondition();
+            if (isSharedQueue()) {
+                loadQueueWatermark();
+                hostCondition = format(" and (%s or %s)", getQueueHostCondition(), getSharedQueueCondition(false));
+            }
+            String queryString = format("select q.id from sys$FtsQueue q where q.fake = false%s " +
+                            "and q.changeType <> :reindexChangeType%s and q.createTs <= :createTs order by q.createTs",
+                    hostCondition, login != null ? " and q.createdBy = :createdBy" : "");
+            TypedQuery<UUID> query = em.createQuery(queryString, UUID.class)
+                    .setParameter("reindexChangeType", FtsChangeType.INSERT.getId())
+                    .setParameter("createTs", queuedBefore);
+            if (login != null)
+                query.setParameter("createdBy", login);
+            if (!claiming)
+                setQueueHostParameters(query);
+            if (isSharedQueue())
+                setSharedQueueParameters(query, false);
+            query.setMaxResults(uncommittedItems.size() + failedItems.size() + 1);
             return query.getResultList();
         });
+        Set<UUID> uncommittedIds = getUncommittedIds();
+        // failed items are not waited for, dead letter items are not loaded as they have the fake flag
+        return ids.stream().anyMatch(id -> !uncommittedIds.contains(id) && !failedItems.containsKey(id));
     }
 
-    protected void removeQueuedItems(List<FtsQueue> list) {
-        try (Transaction tx = persistence.createTransaction()) {
-            EntityManager em = persistence.getEntityManager();
+    /**
+     * @return ids of the items that are indexed but not committed yet, can be invoked without holding the
+     * {@link #writeLock}
+     */
+    protected Set<UUID> getUncommittedIds() {
+        synchronized (uncommittedItems) {
+            return uncommittedItems.stream().map(FtsQueue::getId).collect(Collectors.toSet());
+        }
+    }
 
-            for (int i = 0; i < list.size(); i += DEL_CHUNK) {
-                StringBuilder sb = new StringBuilder("delete from SYS_FTS_QUEUE where ID in (");
-                List<FtsQueue> sublist = list.subList(i, Math.min(i + DEL_CHUNK, list.size()));
-                for (int idx = 0; idx < sublist.size(); idx++) {
-                    sb.append("?");
-                    if (idx < sublist.size() - 1)
-                        sb.append(", ");
-                }
-                sb.append(")");
+    protected boolean isApplicationContextStarted() {
+        return AppContext.isStarted();
+    }
+
+    /**
+     * Loads the next batch of queued items from two lanes: changes made by users ({@link FtsChangeType#UPDATE} and
+     * {@link FtsChangeType#DELETE}) and instances queued by reindex ({@link FtsChangeType#INSERT}). The reindex lane
+     * takes at most {@link FtsConfig#getReindexQueueShare()} percent of the batch if user changes are waiting, the
+     * capacity not used by one lane is given to the other one. Items of the shared queue are split into the same lanes
+     * and follow the items queued for this host. Changes passed to the in-memory queue are processed first, without
+     * loading them from the database.
+     */
+    protected List<FtsQueue> loadQueuedItems(int batchSize) {
+        if (isInMemoryQueue()) {
+            List<FtsQueue> committed = pollCommittedChanges(batchSize);
+            if (!committed.isEmpty()) {
+                return committed;
+            }
+        }
+        pruneFailedItems();
+        List<FtsQueue> interactiveItems = new ArrayList<>(loadQueuedItems(false, batchSize));
+        List<FtsQueue> reindexItems = new ArrayList<>(loadQueuedItems(true, batchSize));
+        if (isSharedQueue()) {
+            interactiveItems.addAll(loadSharedQueueItems(false, batchSize));
+            reindexItems.addAll(loadSharedQueueItems(true, batchSize));
+        }
 
-                DbTypeConverter converter = persistence.getDbTypeConverter();
+        int reindexShare = Math.min(Math.max(ftsConfig.getReindexQueueShare(), 0), 100);
+        int reindexLimit = Math.max(batchSize - interactiveItems.size(), batchSize * reindexShare / 100);
+        List<FtsQueue> list = new ArrayList<>(batchSize);
+        list.addAll(reindexItems.subList(0, Math.min(reindexItems.size(), reindexLimit)));
+        list.addAll(interactiveItems.subList(0, Math.min(interactiveItems.size(), batchSize - list.size())));
+        // changes of the same instance must be applied in the order they were queued
+        list.sort(Comparator.comparing(FtsQueue::getCreateTs));
+        list = limitByIndexingCost(list, batchSize);
+        if (isSharedQueue()) {
+            list = retainSharedQueuePrefix(list, interactiveItems);
+            list = retainSharedQueuePrefix(list, reindexItems);
+        }
+        return isQueueClaiming() ? claimQueuedItems(list) : list;
+    }
 
-                Query query = em.createNativeQuery(sb.toString());
-                for (int idx = 0; idx < sublist.size(); idx++) {
-                    query.setParameter(idx + 1, converter.getSqlObject(sublist.get(idx).getId()));
-                }
-                query.executeUpdate();
+    /**
+     * @return true if each change is queued once for all indexing hosts, see {@link FtsConfig#getSharedQueueEnabled()}
+     */
+    protected boolean isSharedQueue() {
+        return ftsConfig.getSharedQueueEnabled() && !ftsConfig.getIndexingHosts().isEmpty();
+    }
+
+    /**
+     * Loads items of a lane of the shared queue following the watermark of this host in the order of their numbers,
+     * see {@link SharedQueueIds}. The numbers are taken from a database sequence when the items are inserted, so an
+     * item of a transaction that is not committed yet leaves a gap in the loaded numbers. Items following a gap are not
+     * loaded until the gap is filled or {@link FtsConfig#getSharedQueueGapTimeout()} elapses, as the numbers taken by
+     * rolled back transactions are never filled.
+     */
+    protected List<FtsQueue> loadSharedQueueItems(boolean reindexLane, int maxResults) {
+        loadQueueWatermark();
+        SharedQueueLane lane = getSharedQueueLane(reindexLane);
+        List<FtsQueue> items = persistence.callInTransaction(em -> {
+            String queryString = format("select q from sys$FtsQueue q where q.fake = false and %s order by q.id",
+                    getSharedQueueCondition(reindexLane));
+            TypedQuery<FtsQueue> query = em.createQuery(queryString, FtsQueue.class);
+            setSharedQueueParameters(query, reindexLane);
+            query.setMaxResults(maxResults);
+            return query.getResultList();
+        });
+
+        List<FtsQueue> list = new ArrayList<>(items.size());
+        List<FtsQueue> unnumberedItems = new ArrayList<>();
+        long previous = lane.watermark;
+        for (FtsQueue item : items) {
+            long number = SharedQueueIds.getNumber(item.getId());
+            if (number == 0) {
+                unnumberedItems.add(item);
+                continue;
+            }
+            if (previous > 0 && number > previous + 1 && !isSharedQueueGapExpired(lane, previous + 1, number - 1)) {
+                break;
             }
+            list.add(item);
+            previous = number;
+        }
+        if (!unnumberedItems.isEmpty()) {
+            splitUnnumberedItems(unnumberedItems);
+        }
+        return list;
+    }
 
-            tx.commit();
+    protected boolean isSharedQueueGapExpired(SharedQueueLane lane, long firstMissing, long lastMissing) {
+        long now = timeSource.currentTimeMillis();
+        if (lane.gapNumber != firstMissing) {
+            lane.gapNumber = firstMissing;
+            lane.gapDetectedTs = now;
         }
+        if (now - lane.gapDetectedTs < ftsConfig.getSharedQueueGapTimeout()) {
+            return false;
+        }
+        log.warn("Items {}-{} of the {} lane of the shared queue have not been committed in {} ms and are skipped",
+                firstMissing, lastMissing, lane.reindex ? "reindex" : "interactive", now - lane.gapDetectedTs);
+        return true;
     }
 
-    protected int indexFtsQueueItems(List<FtsQueue> list) {
-        List<FtsQueue> notIndexed = new ArrayList<>(list.size());
-        int count = 0;
-        IndexWriter indexWriter = indexWriterProvider.getIndexWriter();
-        try {
-            for (FtsQueue ftsQueue : list) {
-                try {
-                    luceneIndexer.indexEntity(ftsQueue.getEntityName(), ftsQueue.getObjectEntityId(), ftsQueue.getChangeType(), indexWriter);
-                    count++;
-                } catch (IndexingException e) {
-                    if (e.getEntityType() != IndexingException.EntityType.FILE)
-                        notIndexed.add(ftsQueue);
+    /**
+     * Replaces items of the shared queue that have no number, e.g. queued before the shared queue was enabled, with
+     * items queued for each indexing host, as the watermark can't pass them.
+     */
+    protected void splitUnnumberedItems(List<FtsQueue> items) {
+        persistence.runInTransaction(em -> {
+            for (FtsQueue item : items) {
+                int deleted = em.createQuery("delete from sys$FtsQueue q where q.id = :id")
+                        .setParameter("id", item.getId())
+                        .executeUpdate();
+                // the item is already split by another host
+                if (deleted == 0) {
+                    continue;
+                }
+                for (String indexingHost : ftsConfig.getIndexingHosts()) {
+                    em.persist(createHostQueueItem(item, indexingHost));
                 }
             }
-            if (!notIndexed.isEmpty()) {
-                list.removeAll(notIndexed);
+        });
+        log.debug("{} items of the shared queue without a number are queued for each indexing host", items.size());
+    }
+
+    /**
+     * Removes items of the shared queue that follow an item of the same lane missing in the list, e.g. removed by
+     * {@link #limitByIndexingCost(List, int)}, as the watermark can only pass a contiguous run of items.
+     *
+     * @param laneItems items of the lane in the order of their numbers
+     */
+    protected List<FtsQueue> retainSharedQueuePrefix(List<FtsQueue> list, List<FtsQueue> laneItems) {
+        Set<FtsQueue> selected = new HashSet<>(list);
+        Set<FtsQueue> removed = new HashSet<>();
+        boolean missing = false;
+        for (FtsQueue item : laneItems) {
+            if (item.getIndexingHost() != null) {
+                continue;
             }
-        } finally {
-            try {
-                indexWriter.commit();
-                indexSearcherProvider.getSearcherManager().maybeRefresh();
-            } catch (IOException e) {
-                throw new RuntimeException("Error on index writer commit", e);
+            if (!selected.contains(item)) {
+                missing = true;
+            } else if (missing) {
+                removed.add(item);
             }
         }
-        return count;
+        if (removed.isEmpty()) {
+            return list;
+        }
+        return list.stream()
+                .filter(item -> !removed.contains(item))
+                .collect(Collectors.toList());
     }
 
-    @Override
-    public String optimize() {
-        return luceneIndexMaintenance.optimize();
+    protected SharedQueueLane getSharedQueueLane(boolean reindexLane) {
+        return reindexLane ? reindexSharedLane : interactiveSharedLane;
     }
 
-    @Override
-    public String upgrade() {
-        return luceneIndexMaintenance.upgrade();
+    protected String getSharedQueueCondition(boolean reindexLane) {
+        return "q.indexingHost is null and q.id > :watermarkId and " +
+                (reindexLane ? "q.changeType = :reindexChangeType" : "q.changeType <> :reindexChangeType");
     }
 
-    @Override
-    public boolean showInResults(String entityName) {
-        EntityDescr descr = entityDescrsManager.getDescrByEntityName(entityName);
-        return descr != null && descr.isShow();
+    protected void setSharedQueueParameters(Query query, boolean reindexLane) {
+        query.setParameter("watermarkId", getSharedQueueLane(reindexLane).getWatermarkId());
+        query.setParameter("reindexChangeType", FtsChangeType.INSERT.getId());
     }
 
-    @Override
-    public void deleteIndexForEntity(String entityName) {
-        luceneIndexer.deleteDocumentsForEntity(entityName);
+    /**
+     * Moves the watermarks of this host past the processed items of the shared queue. Items that were not indexed are
+     * queued again for this host only.
+     */
+    protected void advanceQueueWatermark(List<FtsQueue> list, List<FtsQueue> processedItems) {
+        List<FtsQueue> notProcessed = new ArrayList<>();
+        for (FtsQueue item : list) {
+            long number = item.getIndexingHost() == null ? SharedQueueIds.getNumber(item.getId()) : 0;
+            if (number == 0) {
+                continue;
+            }
+            // the change type of the item may be changed by the coalescing, the lane is kept in the id
+            SharedQueueLane lane = getSharedQueueLane(SharedQueueIds.isReindexLane(item.getId()));
+            if (number > lane.watermark) {
+                lane.watermark = number;
+                queueWatermarkChanged = true;
+            }
+            if (!processedItems.contains(item)) {
+                notProcessed.add(item);
+            }
+        }
+        if (!notProcessed.isEmpty()) {
+            persistence.runInTransaction(em -> {
+                for (FtsQueue item : notProcessed) {
+                    em.persist(createHostQueueItem(item, serverId));
+                }
+            });
+        }
     }
 
-    @Override
-    public void deleteIndex() {
-        luceneIndexer.deleteAllDocuments();
+    protected FtsQueue createHostQueueItem(FtsQueue item, String indexingHost) {
+        FtsQueue q = metadata.create(FtsQueue.class);
+        q.setObjectEntityId(item.getObjectEntityId());
+        q.setEntityName(item.getEntityName());
+        q.setChangeType(item.getChangeType());
+        q.setSourceHost(item.getSourceHost());
+        q.setIndexingHost(indexingHost);
+        return q;
     }
 
-    @Override
-    public int reindexEntity(String entityName) {
-        MetaClass metaClass = metadata.getClassNN(entityName);
-        EntityDescr entityDescr = entityDescrsManager.getDescrByEntityName(metaClass.getName());
-
-        if (entityDescr == null) {
-            return 0;
+    protected void loadQueueWatermark() {
+        if (queueWatermarkLoaded) {
+            return;
         }
+        long[] watermarks = parseQueueWatermarks(configStorage.getDbProperty(QUEUE_WATERMARK_PROP_PREFIX + serverId));
+        if (watermarks != null) {
+            interactiveSharedLane.watermark = watermarks[0];
+            reindexSharedLane.watermark = watermarks[1];
+        }
+        queueWatermarkLoaded = true;
+    }
 
-        persistence.runInTransaction(em -> ftsSender.emptyQueue(entityName));
+    /**
+     * @return numbers of the last processed items of the interactive and reindex lanes, null if the value is not set
+     */
+    @Nullable
+    protected long[] parseQueueWatermarks(@Nullable String value) {
+        if (Strings.isNullOrEmpty(value)) {
+            return null;
+        }
+        String[] parts = value.split("\\|");
+        try {
+            return new long[]{Long.parseLong(parts[0]), Long.parseLong(parts[1])};
+        } catch (RuntimeException e) {
+            log.warn("Invalid shared queue watermark '{}' is ignored", value);
+            return null;
+        }
+    }
 
-        return persistence.callInTransaction(em -> {
-            int count = 0;
+    /**
+     * Saves the watermarks after the index is committed and deletes items of the shared queue that all indexing hosts
+     * have passed.
+     */
+    protected void saveQueueWatermark() {
+        if (!queueWatermarkChanged) {
+            return;
+        }
+        configStorage.setDbProperty(QUEUE_WATERMARK_PROP_PREFIX + serverId,
+                interactiveSharedLane.watermark + "|" + reindexSharedLane.watermark);
+        queueWatermarkChanged = false;
 
-            EntitiesCollector collector = AppBeans.getPrototype(EntitiesCollector.NAME, metaClass);
-            if (Strings.isNullOrEmpty(entityDescr.getSearchableIfScript())) {
-                collector.setIdOnly(true);
+        long now = System.currentTimeMillis();
+        if (now - lastQueuePurgeTs < QUEUE_PURGE_INTERVAL) {
+            return;
+        }
+        lastQueuePurgeTs = now;
+        long[] minWatermarks = {Long.MAX_VALUE, Long.MAX_VALUE};
+        for (String host : ftsConfig.getIndexingHosts()) {
+            long[] watermarks = parseQueueWatermarks(configStorage.getDbProperty(QUEUE_WATERMARK_PROP_PREFIX + host));
+            if (watermarks == null) {
+                // the host hasn't processed the queue yet
+                return;
+            }
+            minWatermarks[0] = Math.min(minWatermarks[0], watermarks[0]);
+            minWatermarks[1] = Math.min(minWatermarks[1], watermarks[1]);
+        }
+        int deleted = persistence.callInTransaction(em ->
+                purgeSharedQueueLane(em, false, minWatermarks[0]) + purgeSharedQueueLane(em, true, minWatermarks[1]));
+        log.debug("{} items passed by all indexing hosts are deleted from the queue", deleted);
+    }
 
-                List<Object> ids = executeInStoreTx(metaClass, collector::loadResults);
+    protected int purgeSharedQueueLane(EntityManager em, boolean reindexLane, long watermark) {
+        if (watermark <= 0) {
+            return 0;
+        }
+        String queryString = format("delete from sys$FtsQueue q where q.indexingHost is null " +
+                "and q.changeType %s :reindexChangeType and q.id <= :watermarkId", reindexLane ? "=" : "<>");
+        return em.createQuery(queryString)
+                .setParameter("reindexChangeType", FtsChangeType.INSERT.getId())
+                .setParameter("watermarkId", SharedQueueIds.createId(watermark, reindexLane))
+                .executeUpdate();
+    }
 
-                for (Object id : ids) {
-                    ftsSender.enqueue(metaClass.getName(), id, FtsChangeType.INSERT);
-                    count++;
-                }
+    protected List<FtsQueue> loadQueuedItems(boolean reindexLane, int batchSize) {
+        // processed but not committed items are still in the queue table, as well as items waiting for a retry
+        int maxSize = batchSize + uncommittedItems.size() + failedItems.size() + committedChanges.size();
+        List<FtsQueue> list = persistence.callInTransaction(em -> {
+            String queryString = format("select q from sys$FtsQueue q where q.fake = false and %s and %s " +
+                            "order by q.createTs",
+                    getQueueHostCondition(),
+                    (reindexLane ? "q.changeType = :reindexChangeType" : "q.changeType <> :reindexChangeType"));
+            TypedQuery<FtsQueue> query = em.createQuery(queryString, FtsQueue.class)
+                    .setParameter("reindexChangeType", FtsChangeType.INSERT.getId());
+            setQueueHostParameters(query);
+            query.setMaxResults(maxSize);
+            return query.getResultList();
+        });
+        if (uncommittedItems.isEmpty() && failedItems.isEmpty() && committedChanges.isEmpty()) {
+            return list;
+        }
+        Set<UUID> uncommittedIds = getUncommittedIds();
+        // items waiting in the in-memory queue are processed from there
+        synchronized (committedChanges) {
+            uncommittedIds.addAll(committedChanges.keySet());
+        }
+        long now = timeSource.currentTimeMillis();
+        return list.stream()
+                .filter(item -> !uncommittedIds.contains(item.getId()))
+                .filter(item -> {
+                    FailedItem failedItem = failedItems.get(item.getId());
+                    return failedItem == null || failedItem.nextAttemptTs <= now;
+                })
+                .limit(batchSize)
+                .collect(Collectors.toList());
+    }
 
-                log.debug("{} instances of {} was added to the FTS queue", count, entityName);
+    /**
+     * Counts failed attempts to index the items. The next attempt of a failed item is delayed by
+     * {@link FtsConfig#getIndexingRetryDelay()}, doubled on each attempt. After
+     * {@link FtsConfig#getIndexingMaxAttempts()} the items of the instance are moved to the dead letter state: they are
+     * kept in the queue with the fake flag and skipped until {@link #retryDeadLetterItems()} is invoked.
+     */
+    protected void registerIndexingAttempts(QueuedItemsCoalescer coalescer, List<FtsQueue> indexedItems) {
+        if (!failedItems.isEmpty()) {
+            indexedItems.forEach(item -> failedItems.remove(item.getId()));
+        }
+        List<FtsQueue> failed = new ArrayList<>(coalescer.getEffectiveItems());
+        failed.removeAll(indexedItems);
+        // items postponed because of a lack of resources are retried without counting an attempt
+        failed.removeAll(postponedItems);
+        postponedItems.clear();
+        if (isSharedQueue()) {
+            // failed items of the shared queue are queued again for this host
+            failed.removeIf(item -> item.getIndexingHost() == null);
+        }
+        if (failed.isEmpty()) {
+            return;
+        }
+        long now = timeSource.currentTimeMillis();
+        List<FtsQueue> deadLetterItems = new ArrayList<>();
+        for (FtsQueue item : failed) {
+            FailedItem failedItem = failedItems.computeIfAbsent(item.getId(), id -> new FailedItem());
+            failedItem.attempts++;
+            if (failedItem.attempts >= ftsConfig.getIndexingMaxAttempts()) {
+                failedItems.remove(item.getId());
+                deadLetterItems.addAll(coalescer.withSupersededItems(Collections.singletonList(item)));
             } else {
-                List<Object> ids = executeInStoreTx(metaClass,
-                        () -> collector.loadResults().stream()
-                                .filter(e -> runSearchableIf((Entity<?>) e, entityDescr))
-                                .map(e -> ((Entity<?>) e).getId())
-                                .collect(Collectors.toList()));
-
-                for (Object id : ids) {
-                    ftsSender.enqueue(metaClass.getName(), id, FtsChangeType.INSERT);
-                    count++;
-                }
-
-                log.debug("{} instances of {} was processed. {} of them was added to the FTS queue",
-                        ids.size(), metaClass.getName(), count);
+                long delay = (long) ftsConfig.getIndexingRetryDelay() << Math.min(failedItem.attempts - 1, 16);
+                failedItem.nextAttemptTs = now + delay;
             }
-            return count;
-        });
+        }
+        if (!deadLetterItems.isEmpty()) {
+            log.warn("{} queue items failed {} times and are moved to the dead letter state",
+                    deadLetterItems.size(), ftsConfig.getIndexingMaxAttempts());
+            List<UUID> ids = deadLetterItems.stream().map(FtsQueue::getId).collect(Collectors.toList());
+            persistence.runInTransaction(em -> {
+                for (int i = 0; i < ids.size(); i += CLAIM_CHUNK) {
+                    em.createQuery("update sys$FtsQueue q set q.fake = true where q.id in :ids")
+                            .setParameter("ids", ids.subList(i, Math.min(i + CLAIM_CHUNK, ids.size())))
+                            .executeUpdate();
+                }
+            });
+        }
     }
 
     @Override
-    public void asyncReindexEntity(String entityName) {
-        metadata.getSession().getClassNN(entityName);
-        Preconditions.checkNotNullArgument(entityDescrsManager.getDescrByEntityName(entityName), "FTS configuration not found for %s", entityName);
+    public void resetIndexingAttempts() {
+        failedItems.clear();
+    }
+
+    /**
+     * Forgets failed items whose rows have been removed from the queue, e.g. by a reindex.
+     */
+    protected void pruneFailedItems() {
+        if (failedItems.isEmpty()) {
+            return;
+        }
+        List<UUID> ids = new ArrayList<>(failedItems.keySet());
+        Set<UUID> existingIds = new HashSet<>();
         persistence.runInTransaction(em -> {
-            ftsSender.emptyQueue(entityName);
-            reindexEntitiesQueue.add(entityName);
+            for (int i = 0; i < ids.size(); i += CLAIM_CHUNK) {
+                existingIds.addAll(em.createQuery("select q.id from sys$FtsQueue q " +
+                        "where q.fake = false and q.id in :ids", UUID.class)
+                        .setParameter("ids", ids.subList(i, Math.min(i + CLAIM_CHUNK, ids.size())))
+                        .getResultList());
+            }
         });
+        failedItems.keySet().retainAll(existingIds);
     }
 
     @Override
-    public int reindexAll() {
-        int count = 0;
-        for (String entityName : entityDescrsManager.getDescrByNameMap().keySet()) {
-            count += reindexEntity(entityName);
-        }
-        return count;
+    public List<FtsQueue> getDeadLetterItems(int maxResults) {
+        return persistence.callInTransaction(em ->
+                em.createQuery("select q from sys$FtsQueue q where q.fake = true and q.changeType is not null " +
+                        "order by q.createTs", FtsQueue.class)
+                        .setMaxResults(maxResults)
+                        .getResultList());
     }
 
     @Override
-    public void asyncReindexAll() {
-        entityDescrsManager.getDescrByNameMap().keySet().forEach(this::asyncReindexEntity);
+    public int retryDeadLetterItems() {
+        return persistence.callInTransaction(em ->
+                em.createQuery("update sys$FtsQueue q set q.fake = false " +
+                        "where q.fake = true and q.changeType is not null")
+                        .executeUpdate());
+    }
+
+    /**
+     * @return true if committed changes are passed to the indexing in memory, see
+     * {@link FtsConfig#getInMemoryQueueEnabled()}
+     */
+    protected boolean isInMemoryQueue() {
+        return ftsConfig.getInMemoryQueueEnabled()
+                && ftsConfig.getIndexingHosts().isEmpty()
+                && !ftsConfig.getQueueClaimingEnabled();
     }
 
     @Override
-    public int reindexNextBatch() {
-        if (!isApplicationContextStarted()) {
-            return 0;
+    public void addCommittedChanges(List<FtsQueue> items) {
+        if (!isInMemoryQueue() || !isEnabled()) {
+            return;
+        }
+        synchronized (committedChanges) {
+            int maxSize = ftsConfig.getInMemoryQueueMaxSize();
+            for (FtsQueue item : items) {
+                if (committedChanges.size() >= maxSize) {
+                    // the rest is loaded from the database
+                    break;
+                }
+                committedChanges.put(item.getId(), item);
+            }
         }
+        requestQueueProcessing();
+    }
 
-        if (!ftsConfig.getEnabled()) {
-            return 0;
+    protected List<FtsQueue> pollCommittedChanges(int maxResults) {
+        synchronized (committedChanges) {
+            List<FtsQueue> list = new ArrayList<>(Math.min(maxResults, committedChanges.size()));
+            Iterator<FtsQueue> iterator = committedChanges.values().iterator();
+            while (iterator.hasNext() && list.size() < maxResults) {
+                list.add(iterator.next());
+                iterator.remove();
+            }
+            return list;
         }
+    }
 
-        if (reindexEntitiesQueue.isEmpty()) {
-            return 0;
+    /**
+     * @return single thread executor processing the queue in background, further tasks are discarded while one is
+     * waiting
+     */
+    protected Executor getQueueProcessingExecutor() {
+        if (queueProcessingExecutor == null) {
+            synchronized (this) {
+                if (queueProcessingExecutor == null) {
+                    queueProcessingExecutor = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS,
+                            new ArrayBlockingQueue<>(1),
+                            new ThreadFactoryBuilder().setNameFormat("fts-queue-processing-%d").setDaemon(true).build(),
+                            new ThreadPoolExecutor.DiscardPolicy());
+                    queueProcessingExecutor.allowCoreThreadTimeOut(true);
+                }
+            }
+        }
+        return queueProcessingExecutor;
+    }
+
+    /**
+     * @return true if queue items are claimed before processing, so several consumers can share the queue, see
+     * {@link FtsConfig#getQueueClaimingEnabled()}
+     */
+    protected boolean isQueueClaiming() {
+        return ftsConfig.getQueueClaimingEnabled() && ftsConfig.getIndexingHosts().isEmpty();
+    }
+
+    /**
+     * Returns the JPQL condition selecting queue items that can be processed by this server. In the claiming mode
+     * these are items that are not claimed or whose claim has expired.
+     */
+    protected String getQueueHostCondition() {
+        if (!ftsConfig.getIndexingHosts().isEmpty()) {
+            return "q.indexingHost = :indexingHost";
+        } else if (isQueueClaiming()) {
+            return "(q.indexingHost is null or q.indexingHost < :expiredClaim)";
+        } else {
+            return "q.indexingHost is null";
+        }
+    }
+
+    protected void setQueueHostParameters(Query query) {
+        if (!ftsConfig.getIndexingHosts().isEmpty()) {
+            query.setParameter("indexingHost", serverId);
+        } else if (isQueueClaiming()) {
+            query.setParameter("expiredClaim", createClaimToken(
+                    System.currentTimeMillis() - ftsConfig.getQueueClaimTimeout(), ""));
+        }
+    }
+
+    /**
+     * Claim tokens are stored in the indexing host column. They start with the claim time padded to the same length,
+     * so tokens of expired claims are less than the token created for the expiration time.
+     */
+    protected String createClaimToken(long claimTs, String suffix) {
+        return format("%s%013d%s", CLAIM_TOKEN_PREFIX, claimTs, suffix);
+    }
+
+    /**
+     * Marks the items with a claim token of this server. The update is conditional, so an item claimed concurrently
+     * by another consumer is skipped.
+     *
+     * @return the items claimed by this server
+     */
+    protected List<FtsQueue> claimQueuedItems(List<FtsQueue> list) {
+        if (list.isEmpty()) {
+            return list;
+        }
+        String token = createClaimToken(System.currentTimeMillis(),
+                "|" + serverId + "|" + UUID.randomUUID().toString().substring(0, 8));
+        List<UUID> ids = list.stream().map(FtsQueue::getId).collect(Collectors.toList());
+        return persistence.callInTransaction(em -> {
+            for (int i = 0; i < ids.size(); i += CLAIM_CHUNK) {
+                Query query = em.createQuery(format("update sys$FtsQueue q set q.indexingHost = :token " +
+                        "where q.id in :ids and %s", getQueueHostCondition()))
+                        .setParameter("token", token)
+                        .setParameter("ids", ids.subList(i, Math.min(i + CLAIM_CHUNK, ids.size())));
+                setQueueHostParameters(query);
+                query.executeUpdate();
+            }
+            return em.createQuery("select q from sys$FtsQueue q where q.indexingHost = :token order by q.createTs",
+                    FtsQueue.class)
+                    .setParameter("token", token)
+                    .getResultList();
+        });
+    }
+
+    /**
+     * Returns claimed items that were not processed to the queue, so they are processed again without waiting for the
+     * claim expiration.
+     */
+    protected void releaseQueuedItems(List<FtsQueue> list) {
+        if (list.isEmpty()) {
+            return;
+        }
+        List<UUID> ids = list.stream().map(FtsQueue::getId).collect(Collectors.toList());
+        persistence.runInTransaction(em -> {
+            for (int i = 0; i < ids.size(); i += CLAIM_CHUNK) {
+                em.createQuery("update sys$FtsQueue q set q.indexingHost = null where q.id in :ids")
+                        .setParameter("ids", ids.subList(i, Math.min(i + CLAIM_CHUNK, ids.size())))
+                        .executeUpdate();
+            }
+        });
+    }
+
+    /**
+     * @return true if the index is not committed after every processed batch, see {@link FtsConfig#getCommitInterval()}
+     */
+    protected boolean isCommitDeferred() {
+        return ftsConfig.getCommitInterval() > 0;
+    }
+
+    /**
+     * Commits the index if the commit interval has elapsed or too many processed items are waiting for the commit.
+     * Processed queue items are removed only after the commit, so they are indexed again after a crash.
+     */
+    protected void commitIfNeeded() {
+        if (uncommittedItems.isEmpty() && !queueWatermarkChanged) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (isCommitDeferred()
+                && now - lastCommitTs < ftsConfig.getCommitInterval()
+                && uncommittedItems.size() < ftsConfig.getCommitMaxPendingItems()) {
+            return;
+        }
+        try {
+            indexWriterProvider.getIndexWriter().commit();
+        } catch (IOException e) {
+            throw new RuntimeException("Error on index writer commit", e);
+        }
+        lastCommitTs = now;
+        removeQueuedItems(uncommittedItems);
+        saveQueueWatermark();
+        log.debug("Index committed, {} queue items removed", uncommittedItems.size());
+        uncommittedItems.clear();
+    }
+
+    protected void removeQueuedItems(List<FtsQueue> list) {
+        if (list.isEmpty()) {
+            return;
+        }
+        int chunkSize = getDeleteChunkSize();
+        try (Transaction tx = persistence.createTransaction()) {
+            EntityManager em = persistence.getEntityManager();
+            DbTypeConverter converter = persistence.getDbTypeConverter();
+
+            for (int i = 0; i < list.size(); i += chunkSize) {
+                List<FtsQueue> sublist = list.subList(i, Math.min(i + chunkSize, list.size()));
+                String sql = "delete from SYS_FTS_QUEUE where ID in (" +
+                        String.join(", ", Collections.nCopies(sublist.size(), "?")) + ")";
+
+                Query query = em.createNativeQuery(sql);
+                for (int idx = 0; idx < sublist.size(); idx++) {
+                    query.setParameter(idx + 1, converter.getSqlObject(sublist.get(idx).getId()));
+                }
+                query.executeUpdate();
+            }
+
+            tx.commit();
+        }
+    }
+
+    protected int getDeleteChunkSize() {
+        int chunkSize = ftsConfig.getQueueDeleteChunkSize();
+        if (chunkSize > 0) {
+            return chunkSize;
+        }
+        return DEL_CHUNK_BY_DBMS.getOrDefault(DbmsType.getType(), DEL_CHUNK);
+    }
+
+    protected int indexFtsQueueItems(List<FtsQueue> list) {
+        IndexWriter indexWriter = indexWriterProvider.getIndexWriter();
+        try {
+            return writeFtsQueueItems(list, indexWriter);
+        } finally {
+            try {
+                if (!isCommitDeferred()) {
+                    indexWriter.commit();
+                    lastCommitTs = System.currentTimeMillis();
+                }
+                // the searcher is opened from the writer, so it sees not committed changes too
+                indexSearcherProvider.getSearcherManager().maybeRefresh();
+            } catch (IOException e) {
+                throw new RuntimeException("Error on index writer commit", e);
+            }
+        }
+    }
+
+    /**
+     * Indexes the items with the given writer without committing it. Items that are not indexed are removed from the
+     * list.
+     *
+     * @return number of indexed items
+     */
+    protected int writeFtsQueueItems(List<FtsQueue> list, IndexWriter indexWriter) {
+        List<FtsQueue> notIndexed = Collections.synchronizedList(new ArrayList<>(list.size()));
+        AtomicInteger count = new AtomicInteger();
+        int threads = ftsConfig.getIndexingThreads();
+        List<List<FtsQueue>> tasks = splitIntoIndexingTasks(list, Math.max(threads, 1));
+        if (threads <= 1 || tasks.size() <= 1) {
+            for (List<FtsQueue> items : tasks) {
+                indexItems(items, indexWriter, count, notIndexed);
+            }
+        } else {
+            ExecutorService executor = getIndexingExecutor(threads);
+            List<Future<?>> futures = new ArrayList<>(tasks.size());
+            for (List<FtsQueue> items : tasks) {
+                futures.add(executor.submit(new SecurityContextAwareRunnable(
+                        () -> indexItems(items, indexWriter, count, notIndexed))));
+            }
+            waitForIndexingTasks(futures);
+        }
+        if (!notIndexed.isEmpty()) {
+            list.removeAll(notIndexed);
+        }
+        return count.get();
+    }
+
+    /**
+     * Splits queued items into tasks, each containing items of a single entity, so the instances of a task can be
+     * loaded together. Changes of the same instance must be applied in the order they were queued, so they always go
+     * to the same task. Items of each entity are split into at most {@code threads} tasks.
+     */
+    protected List<List<FtsQueue>> splitIntoIndexingTasks(List<FtsQueue> list, int threads) {
+        Map<String, Map<String, List<FtsQueue>>> itemsByEntity = new LinkedHashMap<>();
+        for (FtsQueue ftsQueue : list) {
+            itemsByEntity.computeIfAbsent(ftsQueue.getEntityName(), k -> new LinkedHashMap<>())
+                    .computeIfAbsent(getInstanceKey(ftsQueue), k -> new ArrayList<>())
+                    .add(ftsQueue);
+        }
+        List<List<FtsQueue>> tasks = new ArrayList<>();
+        for (Map<String, List<FtsQueue>> itemsByInstance : itemsByEntity.values()) {
+            int instancesPerTask = (itemsByInstance.size() + threads - 1) / threads;
+            List<FtsQueue> task = new ArrayList<>();
+            int instances = 0;
+            for (List<FtsQueue> items : itemsByInstance.values()) {
+                task.addAll(items);
+                if (++instances == instancesPerTask) {
+                    tasks.add(task);
+                    task = new ArrayList<>();
+                    instances = 0;
+                }
+            }
+            if (!task.isEmpty()) {
+                tasks.add(task);
+            }
+        }
+        return tasks;
+    }
+
+    protected void indexItems(List<FtsQueue> items, IndexWriter indexWriter, AtomicInteger count, List<FtsQueue> notIndexed) {
+        List<FtsQueue> failed = luceneIndexer.indexEntities(items.get(0).getEntityName(), items, indexWriter,
+                postponedItems);
+        notIndexed.addAll(failed);
+        count.addAndGet(items.size() - failed.size());
+    }
+
+    protected String getInstanceKey(FtsQueue ftsQueue) {
+        return ftsQueue.getEntityName() + "-" + ftsQueue.getObjectEntityId();
+    }
+
+    /**
+     * Waits until all submitted indexing tasks are finished. The index writer must not be committed while some of
+     * the tasks are still adding documents, so the first failure is rethrown only after all tasks are completed.
+     */
+    protected void waitForIndexingTasks(List<Future<?>> futures) {
+        RuntimeException failure = null;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                futures.forEach(f -> f.cancel(false));
+                throw new RuntimeException("Interrupted while waiting for indexing tasks", e);
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    Throwable cause = e.getCause();
+                    failure = cause instanceof RuntimeException ?
+                            (RuntimeException) cause : new RuntimeException("Error on indexing", cause);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    protected ExecutorService getIndexingExecutor(int threads) {
+        if (indexingExecutor == null) {
+            synchronized (this) {
+                if (indexingExecutor == null) {
+                    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<>(),
+                            new ThreadFactoryBuilder().setNameFormat("fts-indexing-%d").setDaemon(true).build());
+                    executor.allowCoreThreadTimeOut(true);
+                    indexingExecutor = executor;
+                }
+            }
+        }
+        // fts.indexingThreads can be changed at runtime
+        if (indexingExecutor.getMaximumPoolSize() != threads) {
+            synchronized (this) {
+                if (threads > indexingExecutor.getMaximumPoolSize()) {
+                    indexingExecutor.setMaximumPoolSize(threads);
+                    indexingExecutor.setCorePoolSize(threads);
+                } else {
+                    indexingExecutor.setCorePoolSize(threads);
+                    indexingExecutor.setMaximumPoolSize(threads);
+                }
+            }
+        }
+        return indexingExecutor;
+    }
+
+    @PreDestroy
+    protected void shutdownIndexingExecutor() {
+        if (indexingExecutor != null) {
+            indexingExecutor.shutdownNow();
+        }
+        if (reindexExecutor != null) {
+            reindexExecutor.shutdownNow();
+        }
+        if (queueProcessingExecutor != null) {
+            queueProcessingExecutor.shutdownNow();
+        }
+    }
+
+    @Override
+    public String optimize() {
+        return luceneIndexMaintenance.optimize();
+    }
+
+    @Override
+    public String upgrade() {
+        return luceneIndexMaintenance.upgrade();
+    }
+
+    @Override
+    public int backfillUniqueKeys() {
+        if (!isEnabled())
+            return 0;
+
+        int count = 0;
+        int batchCount;
+        Set<String> failedDocuments = new HashSet<>();
+        authentication.begin();
+        try {
+            do {
+                // the index writer is committed by the migration, so queue processing waits for each batch
+                writeLock.lock();
+                try {
+                    batchCount = luceneIndexMaintenance.backfillUniqueKeys(ftsConfig.getIndexingBatchSize(),
+                            failedDocuments);
+                } finally {
+                    writeLock.unlock();
+                }
+                count += batchCount;
+            } while (batchCount > 0);
+        } finally {
+            authentication.end();
+        }
+        return count - failedDocuments.size();
+    }
+
+    @Override
+    public boolean isUniqueKeysIndex() {
+        return Boolean.parseBoolean(indexWriterProvider.getCommitData(LuceneConstants.COMMIT_DATA_UNIQUE_KEYS));
+    }
+
+    @Override
+    public boolean showInResults(String entityName) {
+        EntityDescr descr = entityDescrsManager.getDescrByEntityName(entityName);
+        return descr != null && descr.isShow();
+    }
+
+    @Override
+    public void deleteIndexForEntity(String entityName) {
+        luceneIndexer.deleteDocumentsForEntity(entityName);
+    }
+
+    @Override
+    public void deleteIndex() {
+        luceneIndexer.deleteAllDocuments();
+        resetIndexingAttempts();
+    }
+
+    @Override
+    public int reindexEntity(String entityName) {
+        MetaClass metaClass = metadata.getClassNN(entityName);
+        EntityDescr entityDescr = entityDescrsManager.getDescrByEntityName(metaClass.getName());
+
+        if (entityDescr == null) {
+            return 0;
+        }
+
+        persistence.runInTransaction(em -> ftsSender.emptyQueue(entityName));
+
+        return persistence.callInTransaction(em -> {
+            int count = 0;
+
+            EntitiesCollector collector = AppBeans.getPrototype(EntitiesCollector.NAME, metaClass);
+            if (Strings.isNullOrEmpty(entityDescr.getSearchableIfScript())) {
+                collector.setIdOnly(true);
+
+                List<Object> ids = executeInStoreTx(metaClass, collector::loadResults);
+
+                for (Object id : ids) {
+                    ftsSender.enqueue(metaClass.getName(), id, FtsChangeType.INSERT);
+                    count++;
+                }
+
+                log.debug("{} instances of {} was added to the FTS queue", count, entityName);
+            } else {
+                List<Object> ids = executeInStoreTx(metaClass,
+                        () -> collector.loadResults().stream()
+                                .filter(e -> runSearchableIf((Entity<?>) e, entityDescr))
+                                .map(e -> ((Entity<?>) e).getId())
+                                .collect(Collectors.toList()));
+
+                for (Object id : ids) {
+                    ftsSender.enqueue(metaClass.getName(), id, FtsChangeType.INSERT);
+                    count++;
+                }
+
+                log.debug("{} instances of {} was processed. {} of them was added to the FTS queue",
+                        ids.size(), metaClass.getName(), count);
+            }
+            return count;
+        });
+    }
+
+    @Override
+    public void asyncReindexEntity(String entityName) {
+        metadata.getSession().getClassNN(entityName);
+        Preconditions.checkNotNullArgument(entityDescrsManager.getDescrByEntityName(entityName), "FTS configuration not found for %s", entityName);
+        MetaClass metaClass = metadata.getClassNN(entityName);
+        persistence.runInTransaction(em -> ftsSender.emptyQueue(entityName));
+        setReindexCursor(metaClass, null);
+
+        long total = countInstances(metaClass);
+        synchronized (reindexEntitiesQueue) {
+            restoreReindexQueue();
+            long[] job = reindexEntitiesQueue.isEmpty()
+                    ? new long[]{System.currentTimeMillis(), 0, 0}
+                    : getReindexProgress(REINDEX_JOB_PROP, 3);
+            long[] previous = reindexEntitiesQueue.contains(entityName)
+                    ? getReindexProgress(REINDEX_PROGRESS_PROP_PREFIX + entityName, 2)
+                    : new long[2];
+            // the entity is reindexed from the start, so its previous progress is not counted
+            setReindexProgress(REINDEX_JOB_PROP, job[0], job[1] - previous[0], job[2] - previous[1] + total);
+            setReindexProgress(REINDEX_PROGRESS_PROP_PREFIX + entityName, 0, total);
+            if (!reindexEntitiesQueue.contains(entityName)) {
+                reindexEntitiesQueue.add(entityName);
+            }
+            saveReindexQueue();
+        }
+    }
+
+    @Override
+    public int reindexAll() {
+        return runReindexTasks(new ArrayList<>(entityDescrsManager.getDescrByNameMap().keySet()), this::reindexEntity);
+    }
+
+    @Override
+    public void asyncReindexAll() {
+        entityDescrsManager.getDescrByNameMap().keySet().forEach(this::asyncReindexEntity);
+    }
+
+    @Override
+    public int reindexNextBatch() {
+        if (!isApplicationContextStarted()) {
+            return 0;
+        }
+
+        if (!ftsConfig.getEnabled()) {
+            return 0;
+        }
+
+        restoreReindexQueue();
+        if (reindexEntitiesQueue.isEmpty()) {
+            return 0;
         }
 
         log.debug("Start reindexing next entities batch");
@@ -430,76 +1488,583 @@ public class FtsManager implements FtsManagerAPI {
             authentication.begin();
             reindexing = true;
 
-            MetaClass metaClass = metadata.getClassNN(reindexEntitiesQueue.element());
-            EntityDescr entityDescr = entityDescrsManager.getDescrByEntityName(metaClass.getName());
+            // one batch of each of several entities, at most fts.reindexThreadsPerStore entities of a data store
+            int threads = Math.max(ftsConfig.getReindexThreads(), 1);
+            int threadsPerStore = Math.max(ftsConfig.getReindexThreadsPerStore(), 1);
+            List<String> entityNames = new ArrayList<>();
+            Map<String, Integer> entitiesPerStore = new HashMap<>();
+            for (String entityName : reindexEntitiesQueue) {
+                if (entityNames.size() == threads) {
+                    break;
+                }
+                String storeName = getStoreName(metadata.getClassNN(entityName));
+                if (entitiesPerStore.getOrDefault(storeName, 0) < threadsPerStore && !entityNames.contains(entityName)) {
+                    entitiesPerStore.merge(storeName, 1, Integer::sum);
+                    entityNames.add(entityName);
+                }
+            }
+            return runReindexTasks(entityNames, this::reindexEntityBatch);
+        } finally {
+            reindexLock.unlock();
+            reindexing = false;
+            authentication.end();
+        }
+    }
+
+    /**
+     * Adds the next batch of instances of the entity to the queue.
+     *
+     * @return number of queued instances
+     */
+    protected int reindexEntityBatch(String entityName) {
+        MetaClass metaClass = metadata.getClassNN(entityName);
+        EntityDescr entityDescr = entityDescrsManager.getDescrByEntityName(metaClass.getName());
+
+        if (entityDescr == null) {
+            return 0;
+        }
 
-            if (entityDescr == null) {
-                return 0;
+        String primaryKeyName = getPrimaryKeyPropertyForFts(metaClass).getName();
+        boolean idOnly = Strings.isNullOrEmpty(entityDescr.getSearchableIfScript());
+        EntitiesCollector collector = AppBeans.getPrototype(EntitiesCollector.NAME, metaClass);
+        collector.setIdOnly(idOnly);
+
+        int batchSize = ftsConfig.getReindexBatchSize();
+        Object lastId = getReindexCursor(metaClass);
+        List<Object> ids = new ArrayList<>();
+        List<Object> loaded = persistence.callInTransaction(getStoreName(metaClass), em -> {
+            List<Object> page = collector.loadNextPage(lastId, batchSize);
+            for (Object obj : page) {
+                if (idOnly) {
+                    ids.add(obj);
+                } else if (runSearchableIf((Entity) obj, entityDescr)) {
+                    ids.add(getEntityKey((Entity) obj, primaryKeyName));
+                }
             }
+            return page;
+        });
 
-            return persistence.callInTransaction(em -> {
-                int count = 0;
+        persistence.runInTransaction(em -> {
+            for (Object id : ids) {
+                ftsSender.enqueue(metaClass.getName(), id, FtsChangeType.INSERT);
+            }
+        });
 
-                EntitiesCollector collector = AppBeans.getPrototype(EntitiesCollector.NAME, metaClass);
-                collector.setExcludeFromQueue(true);
+        // the cursor is saved after the instances are queued, so a failed batch is loaded again
+        if (loaded.size() < batchSize) {
+            setReindexCursor(metaClass, null);
+        } else {
+            Object last = loaded.get(loaded.size() - 1);
+            setReindexCursor(metaClass, idOnly ? last : getEntityKey((Entity) last, primaryKeyName));
+        }
+        addReindexProgress(metaClass.getName(), loaded.size(), loaded.size() < batchSize);
+        log.debug("{} instances of {} was processed. {} of them was added to the FTS queue",
+                loaded.size(), metaClass.getName(), ids.size());
+        return ids.size();
+    }
 
-                if (Strings.isNullOrEmpty(entityDescr.getSearchableIfScript())) {
-                    collector.setIdOnly(true);
-                    List<Object> ids = executeInStoreTx(metaClass, collector::loadResults);
+    /**
+     * Runs the task for each entity in the reindex executor. At most {@link FtsConfig#getReindexThreads()} tasks
+     * run at once, and at most {@link FtsConfig#getReindexThreadsPerStore()} of them work with the same data store.
+     *
+     * @return sum of the task results
+     */
+    protected int runReindexTasks(List<String> entityNames, ToIntFunction<String> task) {
+        int threads = Math.max(ftsConfig.getReindexThreads(), 1);
+        if (threads == 1 || entityNames.size() <= 1) {
+            int count = 0;
+            for (String entityName : entityNames) {
+                count += task.applyAsInt(entityName);
+            }
+            return count;
+        }
 
-                    for (Object id : ids) {
-                        ftsSender.enqueue(entityDescr.getMetaClass().getName(), id, FtsChangeType.INSERT);
-                        count++;
+        int threadsPerStore = Math.max(ftsConfig.getReindexThreadsPerStore(), 1);
+        CompletionService<Integer> completionService = new ExecutorCompletionService<>(getReindexExecutor(threads));
+        SecurityContext securityContext = AppContext.getSecurityContext();
+        List<String> pending = new ArrayList<>(entityNames);
+        Map<Future<Integer>, String> running = new HashMap<>();
+        Map<String, Integer> runningPerStore = new HashMap<>();
+        int count = 0;
+        RuntimeException failure = null;
+        while (!pending.isEmpty() || !running.isEmpty()) {
+            for (Iterator<String> it = pending.iterator(); it.hasNext() && running.size() < threads; ) {
+                String entityName = it.next();
+                String storeName = getStoreName(metadata.getClassNN(entityName));
+                if (runningPerStore.getOrDefault(storeName, 0) >= threadsPerStore) {
+                    continue;
+                }
+                it.remove();
+                runningPerStore.merge(storeName, 1, Integer::sum);
+                running.put(completionService.submit(() -> {
+                    AppContext.setSecurityContext(securityContext);
+                    try {
+                        return task.applyAsInt(entityName);
+                    } finally {
+                        AppContext.setSecurityContext(null);
                     }
-                    if (ids.size() < ftsConfig.getReindexBatchSize()) {
-                        reindexEntitiesQueue.remove();
+                }), storeName);
+            }
+            try {
+                Future<Integer> future = completionService.take();
+                runningPerStore.merge(running.remove(future), -1, Integer::sum);
+                count += future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                running.keySet().forEach(future -> future.cancel(true));
+                throw new RuntimeException("Reindex is interrupted", e);
+            } catch (ExecutionException e) {
+                log.error("Error on reindexing", e.getCause());
+                if (failure == null) {
+                    failure = e.getCause() instanceof RuntimeException
+                            ? (RuntimeException) e.getCause()
+                            : new RuntimeException(e.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return count;
+    }
+
+    protected ExecutorService getReindexExecutor(int threads) {
+        if (reindexExecutor == null) {
+            synchronized (this) {
+                if (reindexExecutor == null) {
+                    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<>(),
+                            new ThreadFactoryBuilder().setNameFormat("fts-reindex-%d").setDaemon(true).build());
+                    executor.allowCoreThreadTimeOut(true);
+                    reindexExecutor = executor;
+                }
+            }
+        }
+        if (reindexExecutor.getMaximumPoolSize() < threads) {
+            synchronized (this) {
+                reindexExecutor.setMaximumPoolSize(threads);
+                reindexExecutor.setCorePoolSize(threads);
+            }
+        }
+        return reindexExecutor;
+    }
+
+    @Override
+    public int directReindexEntity(String entityName) {
+        if (!isEnabled())
+            return 0;
+
+        MetaClass metaClass = metadata.getClassNN(entityName);
+        EntityDescr entityDescr = entityDescrsManager.getDescrByEntityName(metaClass.getName());
+        if (entityDescr == null) {
+            return 0;
+        }
+
+        boolean locked = reindexLock.tryLock();
+        if (!locked) {
+            log.info("Unable to reindex {}: reindexing at the moment", entityName);
+            return 0;
+        }
+        try {
+            reindexing = true;
+            int count = writeEntityDocuments(metaClass, entityDescr, null);
+            if (isCommitDeferred()) {
+                writeLock.lock();
+                try {
+                    indexWriterProvider.getIndexWriter().commit();
+                    lastCommitTs = System.currentTimeMillis();
+                } catch (IOException e) {
+                    throw new RuntimeException("Error on index writer commit", e);
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+            return count;
+        } finally {
+            reindexing = false;
+            reindexLock.unlock();
+        }
+    }
+
+    /**
+     * Writes documents of all instances of the entity reading them by pages.
+     *
+     * @param shadowWriter writer of the index being rebuilt or null to write to the live index
+     * @return number of indexed instances
+     */
+    protected int writeEntityDocuments(MetaClass metaClass, EntityDescr entityDescr, @Nullable IndexWriter shadowWriter) {
+        String entityName = metaClass.getName();
+        directReindexEntityName = entityName;
+        directReindexCount.set(0);
+        directReindexStartTs = System.currentTimeMillis();
+        try {
+            String primaryKeyName = getPrimaryKeyPropertyForFts(metaClass).getName();
+            boolean idOnly = Strings.isNullOrEmpty(entityDescr.getSearchableIfScript());
+            EntitiesCollector collector = AppBeans.getPrototype(EntitiesCollector.NAME, metaClass);
+            collector.setIdOnly(idOnly);
+
+            int batchSize = ftsConfig.getReindexBatchSize();
+            int count = 0;
+            Object lastId = null;
+            while (true) {
+                Object afterId = lastId;
+                List<Object> ids = new ArrayList<>(batchSize);
+                List<Object> loaded = persistence.callInTransaction(getStoreName(metaClass), em -> {
+                    List<Object> page = collector.loadNextPage(afterId, batchSize);
+                    for (Object obj : page) {
+                        if (idOnly) {
+                            ids.add(obj);
+                        } else if (runSearchableIf((Entity) obj, entityDescr)) {
+                            ids.add(getEntityKey((Entity) obj, primaryKeyName));
+                        }
                     }
-                    log.debug("{} instances of {} was added to the FTS queue", count, metaClass.getName());
+                    return page;
+                });
+                if (loaded.isEmpty()) {
+                    break;
+                }
+                Object last = loaded.get(loaded.size() - 1);
+                lastId = idOnly ? last : getEntityKey((Entity) last, primaryKeyName);
+
+                List<FtsQueue> items = ids.stream()
+                        .map(id -> createReindexFtsQueue(entityName, id))
+                        .collect(Collectors.toList());
+                List<FtsQueue> notIndexed = new ArrayList<>(items);
+                if (shadowWriter != null) {
+                    count += writeFtsQueueItems(items, shadowWriter);
                 } else {
-                    List<FtsQueue> currentFakeQueueItems = new ArrayList<>();
-                    List<Object> ids = new ArrayList<>();
-
-                    Integer loadedSize = executeInStoreTx(metaClass, () -> {
-                        List<Object> loaded = collector.loadResults();
-                        for (Object obj : loaded) {
-                            Entity<?> entity = (Entity<?>) obj;
-                            if (runSearchableIf(entity, entityDescr)) {
-                                ids.add(entity.getId());
-                            } else {
-                                currentFakeQueueItems.add(createFakeFtsQueue(metaClass.getName(), entity.getId()));
-                            }
-                        }
-                        return loaded.size();
-                    });
-
-                    for (Object id : ids) {
-                        ftsSender.enqueue(metaClass.getName(), id, FtsChangeType.INSERT);
-                        count++;
+                    // the lock is taken for each page, so the queue is processed between pages
+                    writeLock.lock();
+                    try {
+                        count += indexFtsQueueItems(items);
+                    } finally {
+                        writeLock.unlock();
                     }
+                }
+                notIndexed.removeAll(items);
+                // items indexed from the queue during a rebuild are replayed to the new index after the swap
+                requeueItems(notIndexed);
+                directReindexCount.set(count);
 
-                    if (loadedSize < ftsConfig.getReindexBatchSize()) {
-                        reindexEntitiesQueue.remove();
-                        ftsSender.emptyFakeQueue(metaClass.getName());
-                    } else {
-                        currentFakeQueueItems.forEach(q -> persistence.getEntityManager().persist(q));
-                    }
-                    log.debug("{} instances of {} was processed. {} of them was added to the FTS queue",
-                            ids.size(), metaClass.getName(), count);
+                if (loaded.size() < batchSize) {
+                    break;
                 }
-                return count;
-            });
+            }
+            log.info("{} instances of {} are reindexed in {} ms", count, entityName,
+                    System.currentTimeMillis() - directReindexStartTs);
+            return count;
         } finally {
-            reindexLock.unlock();
+            directReindexEntityName = null;
+        }
+    }
+
+    /**
+     * Adds items that failed to be indexed or were postponed to the queue, so they are retried as usual.
+     */
+    protected void requeueItems(List<FtsQueue> items) {
+        if (items.isEmpty()) {
+            return;
+        }
+        log.warn("{} instances are not indexed and are added to the queue", items.size());
+        persistence.runInTransaction(em -> {
+            for (FtsQueue item : items) {
+                ftsSender.enqueue(item.getEntityName(), item.getObjectEntityId(), item.getChangeType());
+            }
+        });
+    }
+
+    @Override
+    public int rebuildIndex() {
+        if (!isEnabled())
+            return 0;
+
+        boolean locked = reindexLock.tryLock();
+        if (!locked) {
+            log.info("Unable to rebuild the index: reindexing at the moment");
+            return 0;
+        }
+        IndexWriter shadowWriter = null;
+        try {
+            reindexing = true;
+            log.info("Start rebuilding the index in {}", directoryProvider.getShadowIndexPath());
+            shadowWriter = indexWriterProvider.createIndexWriter(directoryProvider.createShadowDirectory());
+            shadowRebuildOverflow = false;
+            shadowRebuildChanges = Collections.synchronizedMap(new LinkedHashMap<>());
+
+            int count = 0;
+            for (EntityDescr entityDescr : entityDescrsManager.getDescrByNameMap().values()) {
+                checkShadowRebuildOverflow();
+                count += writeEntityDocuments(entityDescr.getMetaClass(), entityDescr, shadowWriter);
+            }
+            shadowWriter.commit();
+
+            writeLock.lock();
+            try {
+                checkShadowRebuildOverflow();
+                IndexWriter writer = shadowWriter;
+                shadowWriter = null;
+                switchToShadowIndex(writer);
+            } finally {
+                writeLock.unlock();
+            }
+            log.info("Index is rebuilt, {} instances are indexed", count);
+            return count;
+        } catch (IOException e) {
+            throw new RuntimeException("Error on rebuilding the index", e);
+        } finally {
+            shadowRebuildChanges = null;
+            shadowRebuildOverflow = false;
+            if (shadowWriter != null) {
+                try {
+                    Directory shadowDirectory = shadowWriter.getDirectory();
+                    shadowWriter.close();
+                    shadowDirectory.close();
+                } catch (IOException e) {
+                    log.warn("Unable to close the shadow index writer", e);
+                }
+            }
             reindexing = false;
-            authentication.end();
+            reindexLock.unlock();
+        }
+    }
+
+    /**
+     * Remembers the instances indexed during the index rebuild to index them again in the new index. If there are more
+     * than {@link #MAX_SHADOW_REBUILD_CHANGES} of them, the rebuild is cancelled.
+     */
+    protected void addShadowRebuildChanges(List<FtsQueue> items) {
+        Map<EntityInfo, FtsChangeType> changes = shadowRebuildChanges;
+        if (changes == null || shadowRebuildOverflow) {
+            return;
+        }
+        synchronized (changes) {
+            for (FtsQueue item : items) {
+                EntityInfo key = new EntityInfo(item.getEntityName(), item.getObjectEntityId());
+                // the last change type wins, the key is moved to the end to keep the order of changes
+                changes.remove(key);
+                changes.put(key, item.getChangeType());
+            }
+            if (changes.size() > MAX_SHADOW_REBUILD_CHANGES) {
+                log.warn("More than {} instances are changed during the index rebuild, the rebuild is cancelled",
+                        MAX_SHADOW_REBUILD_CHANGES);
+                shadowRebuildOverflow = true;
+                changes.clear();
+            }
         }
     }
 
-    protected FtsQueue createFakeFtsQueue(String entityName, Object entityId) {
+    protected void checkShadowRebuildOverflow() {
+        if (shadowRebuildOverflow) {
+            throw new IllegalStateException("Too many instances are changed during the index rebuild, " +
+                    "the live index is left unchanged");
+        }
+    }
+
+    /**
+     * Replaces the live index with the rebuilt one and indexes again the instances changed during the rebuild. Queue
+     * items waiting for the commit are removed only after the changes are committed to the new index.
+     * Must be invoked holding the {@link #writeLock}.
+     */
+    protected void switchToShadowIndex(IndexWriter shadowWriter) throws IOException {
+        indexWriterProvider.getIndexWriter().commit();
+
+        Directory shadowDirectory = shadowWriter.getDirectory();
+        shadowWriter.close();
+        shadowDirectory.close();
+
+        // the current searcher keeps serving searches until the searcher of the new index is opened
+        indexSearcherProvider.suspendRefresh();
+        try {
+            // no writer can be opened on the old directory while it is swapped
+            indexWriterProvider.reopenIndexWriter(directoryProvider::swapShadowDirectory);
+        } finally {
+            indexSearcherProvider.reopenSearcherManager();
+        }
+
+        List<FtsQueue> changes = new ArrayList<>();
+        synchronized (shadowRebuildChanges) {
+            for (Map.Entry<EntityInfo, FtsChangeType> entry : shadowRebuildChanges.entrySet()) {
+                FtsQueue item = metadata.create(FtsQueue.class);
+                item.setEntityName(entry.getKey().getEntityName());
+                item.setObjectEntityId(entry.getKey().getId());
+                item.setChangeType(entry.getValue());
+                changes.add(item);
+            }
+        }
+        IndexWriter writer = indexWriterProvider.getIndexWriter();
+        if (!changes.isEmpty()) {
+            log.info("Replaying {} changes made during the index rebuild", changes.size());
+            List<FtsQueue> indexed = new ArrayList<>(changes);
+            writeFtsQueueItems(indexed, writer);
+            changes.removeAll(indexed);
+            // the changes are not in the queue anymore, so they are queued again
+            requeueItems(changes);
+        }
+        writer.commit();
+        lastCommitTs = System.currentTimeMillis();
+        indexSearcherProvider.getSearcherManager().maybeRefresh();
+        if (!uncommittedItems.isEmpty()) {
+            removeQueuedItems(uncommittedItems);
+            uncommittedItems.clear();
+        }
+        saveQueueWatermark();
+    }
+
+    @Override
+    public int directReindexAll() {
+        if (!isEnabled())
+            return 0;
+
+        int count = 0;
+        for (String entityName : entityDescrsManager.getDescrByNameMap().keySet()) {
+            count += directReindexEntity(entityName);
+        }
+        return count;
+    }
+
+    @Nullable
+    @Override
+    public String getDirectReindexProgress() {
+        String entityName = directReindexEntityName;
+        if (entityName == null) {
+            return null;
+        }
+        return format("%s: %d instances indexed in %d s", entityName, directReindexCount.get(),
+                (System.currentTimeMillis() - directReindexStartTs) / 1000);
+    }
+
+    protected Object getEntityKey(Entity entity, String primaryKeyName) {
+        Object id = entity.getValue(primaryKeyName);
+        return id instanceof IdProxy ? ((IdProxy) id).getNN() : id;
+    }
+
+    @Nullable
+    @Override
+    public String getReindexProgress() {
+        restoreReindexQueue();
+        String entityName = reindexEntitiesQueue.peek();
+        if (entityName == null) {
+            return null;
+        }
+        long[] job = getReindexProgress(REINDEX_JOB_PROP, 3);
+        long[] entity = getReindexProgress(REINDEX_PROGRESS_PROP_PREFIX + entityName, 2);
+        StringBuilder sb = new StringBuilder();
+        sb.append(format("%s: %d of %d (%d%%)", entityName, entity[0], entity[1], getPercentage(entity[0], entity[1])));
+        sb.append(format(", total: %d of %d (%d%%)", job[1], job[2], getPercentage(job[1], job[2])));
+        long elapsed = System.currentTimeMillis() - job[0];
+        if (job[1] > 0 && elapsed > 0) {
+            long remaining = Math.max(job[2] - job[1], 0) * elapsed / job[1];
+            sb.append(format(", ETA: %d min", TimeUnit.MILLISECONDS.toMinutes(remaining)));
+        }
+        return sb.toString();
+    }
+
+    protected long getPercentage(long processed, long total) {
+        return total > 0 ? Math.min(processed * 100 / total, 100) : 100;
+    }
+
+    /**
+     * Loads the entities waiting for the async reindex saved by this server before a restart.
+     */
+    protected void restoreReindexQueue() {
+        if (reindexQueueRestored) {
+            return;
+        }
+        synchronized (reindexEntitiesQueue) {
+            if (reindexQueueRestored) {
+                return;
+            }
+            if (serverId.equals(configStorage.getDbProperty(REINDEX_HOST_PROP))) {
+                String entities = configStorage.getDbProperty(REINDEX_ENTITIES_PROP);
+                if (!Strings.isNullOrEmpty(entities)) {
+                    for (String entityName : entities.split(",")) {
+                        if (metadata.getClass(entityName) != null && !reindexEntitiesQueue.contains(entityName)) {
+                            reindexEntitiesQueue.add(entityName);
+                        }
+                    }
+                    log.info("Async reindex of {} is resumed", reindexEntitiesQueue);
+                }
+            }
+            reindexQueueRestored = true;
+        }
+    }
+
+    protected void saveReindexQueue() {
+        if (reindexEntitiesQueue.isEmpty()) {
+            configStorage.setDbProperty(REINDEX_ENTITIES_PROP, null);
+            configStorage.setDbProperty(REINDEX_HOST_PROP, null);
+        } else {
+            configStorage.setDbProperty(REINDEX_ENTITIES_PROP, String.join(",", reindexEntitiesQueue));
+            configStorage.setDbProperty(REINDEX_HOST_PROP, serverId);
+        }
+    }
+
+    protected void addReindexProgress(String entityName, int processed, boolean completed) {
+        synchronized (reindexEntitiesQueue) {
+            long[] job = getReindexProgress(REINDEX_JOB_PROP, 3);
+            long[] entity = getReindexProgress(REINDEX_PROGRESS_PROP_PREFIX + entityName, 2);
+            setReindexProgress(REINDEX_JOB_PROP, job[0], job[1] + processed, job[2]);
+            if (completed) {
+                reindexEntitiesQueue.remove(entityName);
+                saveReindexQueue();
+                configStorage.setDbProperty(REINDEX_PROGRESS_PROP_PREFIX + entityName, null);
+                if (reindexEntitiesQueue.isEmpty()) {
+                    log.info("Async reindex is finished, {} instances are processed", job[1] + processed);
+                    configStorage.setDbProperty(REINDEX_JOB_PROP, null);
+                }
+            } else {
+                setReindexProgress(REINDEX_PROGRESS_PROP_PREFIX + entityName, entity[0] + processed, entity[1]);
+            }
+        }
+    }
+
+    /**
+     * Reads numbers saved by {@link #setReindexProgress(String, long...)}. Missing numbers are zeros.
+     */
+    protected long[] getReindexProgress(String property, int size) {
+        long[] values = new long[size];
+        String value = configStorage.getDbProperty(property);
+        if (!Strings.isNullOrEmpty(value)) {
+            String[] parts = value.split(";");
+            for (int i = 0; i < Math.min(parts.length, size); i++) {
+                values[i] = Long.parseLong(parts[i]);
+            }
+        }
+        return values;
+    }
+
+    protected void setReindexProgress(String property, long... values) {
+        configStorage.setDbProperty(property, Arrays.stream(values)
+                .mapToObj(String::valueOf)
+                .collect(Collectors.joining(";")));
+    }
+
+    protected long countInstances(MetaClass metaClass) {
+        return persistence.callInTransaction(getStoreName(metaClass), em ->
+                ((Number) em.createQuery(format("select count(e) from %s e", metaClass.getName()))
+                        .getSingleResult()).longValue());
+    }
+
+    /**
+     * Returns the primary key of the last instance queued by the async reindex of the entity or null if the reindex
+     * is not started yet. The key is kept in a database property, so the reindex continues after a restart.
+     */
+    @Nullable
+    protected Object getReindexCursor(MetaClass metaClass) {
+        String value = configStorage.getDbProperty(REINDEX_CURSOR_PROP_PREFIX + metaClass.getName());
+        return Strings.isNullOrEmpty(value) ? null : luceneSearcher.parseIdFromString(value, metaClass.getName());
+    }
+
+    protected void setReindexCursor(MetaClass metaClass, @Nullable Object lastId) {
+        configStorage.setDbProperty(REINDEX_CURSOR_PROP_PREFIX + metaClass.getName(),
+                lastId != null ? lastId.toString() : null);
+    }
+
+    protected FtsQueue createReindexFtsQueue(String entityName, Object entityId) {
         FtsQueue q = metadata.create(FtsQueue.class);
         q.setObjectEntityId(entityId);
         q.setEntityName(entityName);
-        q.setFake(true);
+        q.setChangeType(FtsChangeType.INSERT);
         return q;
     }
 
@@ -568,4 +2133,42 @@ public class FtsManager implements FtsManagerAPI {
         Preconditions.checkNotNullArgument(storeName, "Storage not found for %s", metaClass.getName());
         return storeName;
     }
-}
\ No newline at end of file
+
+    protected static class FailedItem {
+
+        protected int attempts;
+
+        protected long nextAttemptTs;
+    }
+
+    /**
+     * Position of this host in a lane of the shared queue
+     */
+    protected static class SharedQueueLane {
+
+        protected final boolean reindex;
+
+        /**
+         * Number of the last processed item, 0 if no item has been processed yet
+         */
+        protected volatile long watermark;
+
+        /**
+         * First missing number that the following items wait for and the time it was detected
+         */
+        protected long gapNumber;
+
+        protected long gapDetectedTs;
+
+        protected SharedQueueLane(boolean reindex) {
+            this.reindex = reindex;
+        }
+
+        /**
+         * @return id that the ids of the following items of the lane are greater than
+         */
+        protected UUID getWatermarkId() {
+            return watermark > 0 ? SharedQueueIds.createId(watermark, reindex) : new UUID(0, 0);
+        }
+    }
+}
@@ -18,6 +18,9 @@ package com.haulmont.fts.core.app;
 import com.haulmont.chile.core.model.MetaClass;
 import com.haulmont.chile.core.model.MetaProperty;
 import com.haulmont.cuba.core.entity.Entity;
+import com.haulmont.cuba.core.entity.FtsQueue;
+
+import javax.annotation.Nullable;
 
 import java.util.List;
 import java.util.Queue;
@@ -38,10 +41,62 @@ public interface FtsManagerAPI {
 
     int processQueue();
 
+    /**
+     * Processes the next batch of queued items.
+     *
+     * @param batchSize maximum number of items to process
+     * @return number of processed items
+     */
+    int processQueue(int batchSize);
+
+    /**
+     * @return size of the batch processed by {@link #processQueue()}, adapted to the measured indexing cost if
+     * {@code fts.indexingBatchTime} or {@code fts.indexingBatchMemory} is set
+     */
+    int getCurrentBatchSize();
+
+    /**
+     * @return time in milliseconds the last loading of queued items by {@link #processQueue(int)} took, used as a
+     * measure of the database load
+     */
+    long getLastQueueLoadTime();
+
+    /**
+     * Passes committed changes to the in-memory queue, so they are indexed without being loaded from the database.
+     * The items must have the ids of the queue items stored in the database. Ignored if the in-memory queue is
+     * disabled, see {@code fts.inMemoryQueueEnabled}.
+     */
+    void addCommittedChanges(List<FtsQueue> items);
+
+    /**
+     * Waits until changes queued by the current user before the invocation are indexed and visible to searches.
+     * Instances queued by a reindex are not waited for. The queue is processed by the indexing daemon or a background
+     * thread, not by the calling thread.
+     *
+     * @param timeoutMillis maximum time to wait
+     * @return true if the changes are visible, false if the time has elapsed
+     */
+    boolean awaitPendingChanges(long timeoutMillis);
+
     String optimize();
 
     String upgrade();
 
+    /**
+     * Migrates documents created before the unique key field was introduced, processing
+     * {@link com.haulmont.fts.global.FtsConfig#getIndexingBatchSize()} documents at a time until only documents that
+     * failed to be reindexed are left. Instances that fail are added to the FTS queue once, so the method should be run
+     * again after the queue is processed if {@link #isUniqueKeysIndex()} is still false.
+     *
+     * @return number of migrated documents
+     */
+    int backfillUniqueKeys();
+
+    /**
+     * @return true if all documents of the index contain the unique key field
+     */
+    boolean isUniqueKeysIndex();
+
     boolean showInResults(String entityName);
 
     boolean isEnabled();
@@ -64,6 +119,61 @@ public interface FtsManagerAPI {
 
     int reindexNextBatch();
 
+    /**
+     * @return progress and estimated remaining time of the async reindex or null if it isn't running
+     */
+    @Nullable
+    String getReindexProgress();
+
+    /**
+     * Reindexes the entity writing documents directly to the index, without adding instances to the FTS queue.
+     * Instances are read by pages of {@link com.haulmont.fts.global.FtsConfig#getReindexBatchSize()} size. Changes
+     * made during the reindex are indexed from the queue as usual. Existing documents are replaced, so the entity
+     * stays searchable, but documents of instances that don't exist anymore are kept, see {@link #rebuildIndex()}.
+     *
+     * @return number of indexed instances
+     */
+    int directReindexEntity(String entityName);
+
+    /**
+     * Reindexes all entities writing documents directly to the index, see {@link #directReindexEntity(String)}.
+     */
+    int directReindexAll();
+
+    /**
+     * Builds a new index of all entities in a directory next to the live index while the live index serves searches,
+     * then replaces the live index with the new one. Instances indexed from the queue during the rebuild are indexed
+     * again after the replacement. The rebuild is cancelled and the live index is kept if too many instances are
+     * changed meanwhile.
+     *
+     * @return number of indexed instances
+     */
+    int rebuildIndex();
+
+    /**
+     * @return queue items that have failed to be indexed {@code fts.indexingMaxAttempts} times and are not processed
+     * anymore
+     */
+    List<FtsQueue> getDeadLetterItems(int maxResults);
+
+    /**
+     * Returns dead letter items to the queue, so they are processed again.
+     *
+     * @return number of items
+     */
+    int retryDeadLetterItems();
+
+    /**
+     * Forgets the failed attempts to index queue items, e.g. after the queue is emptied.
+     */
+    void resetIndexingAttempts();
+
+    /**
+     * @return description of the running direct reindex or null if it isn't running
+     */
+    @Nullable
+    String getDirectReindexProgress();
+
     /**
      * Method checks whether entities of the given MetaClass can be indexed. For example, indexing of entities that
      * have composite primary key and don't implement {@link com.haulmont.cuba.core.entity.HasUuid} interface is not
@@ -15,6 +15,7 @@
  */
 package com.haulmont.fts.core.app;
 
+import com.haulmont.bali.db.QueryRunner;
 import com.haulmont.chile.core.model.MetaClass;
 import com.haulmont.cuba.core.EntityManager;
 import com.haulmont.cuba.core.Persistence;
@@ -22,24 +23,37 @@ import com.haulmont.cuba.core.Query;
 import com.haulmont.cuba.core.Transaction;
 import com.haulmont.cuba.core.app.FtsSender;
 import com.haulmont.cuba.core.app.ServerInfoAPI;
+import com.haulmont.cuba.core.app.UniqueNumbersAPI;
 import com.haulmont.cuba.core.entity.*;
 import com.haulmont.cuba.core.global.Metadata;
 import com.haulmont.cuba.core.global.PersistenceHelper;
+import com.haulmont.cuba.core.global.TimeSource;
+import com.haulmont.cuba.core.global.UserSessionSource;
+import com.haulmont.cuba.core.sys.persistence.DbTypeConverter;
 import com.haulmont.fts.core.jmx.FtsManagerMBean;
 import com.haulmont.fts.core.sys.EntityDescr;
 import com.haulmont.fts.core.sys.EntityDescrsManager;
+import com.haulmont.fts.core.sys.QueuedItemsCoalescer;
+import com.haulmont.fts.core.sys.SharedQueueIds;
 import com.haulmont.fts.global.FtsConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
 import org.springframework.transaction.support.TransactionSynchronizationAdapter;
 import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Nullable;
 import javax.inject.Inject;
-import java.util.List;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.*;
 
 @Component(FtsSender.NAME)
 public class FtsSenderBean implements FtsSender {
 
+    private static final Logger log = LoggerFactory.getLogger(FtsSenderBean.class);
+
     protected FtsManagerAPI manager;
 
     @Inject
@@ -48,6 +62,18 @@ public class FtsSenderBean implements FtsSender {
     @Inject
     protected Persistence persistence;
 
+    @Inject
+    protected TimeSource timeSource;
+
+    @Inject
+    protected UserSessionSource userSessionSource;
+
+    @Inject
+    protected FtsIndexingDaemon indexingDaemon;
+
+    @Inject
+    protected UniqueNumbersAPI uniqueNumbers;
+
     @Inject
     private FtsConfig coreConfig;
 
@@ -107,18 +133,173 @@ public class FtsSenderBean implements FtsSender {
     public void enqueue(String entityName, Object entityId, FtsChangeType changeType) {
         if (!manager.isEntityCanBeIndexed(metadata.getClassNN(entityName))) return;
 
+        QueueBuffer buffer = getQueueBuffer();
+        if (buffer != null) {
+            buffer.add(createQueueItem(entityName, entityId, changeType));
+            return;
+        }
+        persistQueueItems(entityName, entityId, changeType);
+    }
+
+    protected void persistQueueItems(String entityName, Object entityId, FtsChangeType changeType) {
+        List<String> indexingHosts = getQueueIndexingHosts();
         // Join to an existing transaction in main DB or create a new one if we came here with a tx for an additional DB
         try (Transaction tx = persistence.getTransaction()) {
-            List<String> indexingHosts = coreConfig.getIndexingHosts();
-            if (indexingHosts.isEmpty()) {
-                persistQueueItem(entityName, entityId, changeType, null);
-            } else {
-                for (String indexingHost : indexingHosts) {
-                    persistQueueItem(entityName, entityId, changeType, indexingHost);
+            List<FtsQueue> items = new ArrayList<>(indexingHosts.size());
+            for (String indexingHost : indexingHosts) {
+                items.add(persistQueueItem(entityName, entityId, changeType, indexingHost));
+            }
+            // the buffer passes the items to the in-memory queue after the commit
+            QueueBuffer buffer = getTransactionQueueBuffer();
+            if (buffer != null && indexingHosts.size() == 1) {
+                buffer.insertedItems.addAll(items);
+            }
+            tx.commit();
+        }
+    }
+
+    /**
+     * @return indexing hosts to queue each change for, a single null element if the change is queued once
+     */
+    protected List<String> getQueueIndexingHosts() {
+        List<String> indexingHosts = coreConfig.getIndexingHosts();
+        if (indexingHosts.isEmpty() || coreConfig.getSharedQueueEnabled()) {
+            return Collections.singletonList(null);
+        }
+        return indexingHosts;
+    }
+
+    /**
+     * @return true if each change is queued once for all indexing hosts, see {@link FtsConfig#getSharedQueueEnabled()}
+     */
+    protected boolean isSharedQueue() {
+        return coreConfig.getSharedQueueEnabled() && !coreConfig.getIndexingHosts().isEmpty();
+    }
+
+    /**
+     * Gives the item an id containing the next number of its lane in the shared queue, see {@link SharedQueueIds}.
+     * Invoked right before the item is inserted, so changes coalesced in memory don't leave gaps in the sequence.
+     */
+    protected void assignSharedQueueId(FtsQueue item) {
+        long number = uniqueNumbers.getNextNumber(SharedQueueIds.getSequenceName(item.getChangeType()));
+        item.setId(SharedQueueIds.createId(number, SharedQueueIds.isReindexLane(item.getChangeType())));
+    }
+
+    /**
+     * Returns the buffer of queue items of the current transaction, registering it on the first call. The buffer may
+     * be registered while the transaction is being committed, as the platform queues entity changes then.
+     *
+     * @return null if buffering is disabled, there is no active transaction in the main data store or the transaction
+     * is already completing
+     */
+    @Nullable
+    protected QueueBuffer getQueueBuffer() {
+        if (!coreConfig.getQueueBatchingEnabled()) {
+            return null;
+        }
+        QueueBuffer buffer = getTransactionQueueBuffer();
+        return buffer != null && !buffer.completing ? buffer : null;
+    }
+
+    /**
+     * Returns the buffer of the current transaction regardless of the batching, registering it on the first call.
+     * Items persisted directly are added to its inserted items.
+     *
+     * @return null if there is no active transaction in the main data store
+     */
+    @Nullable
+    protected QueueBuffer getTransactionQueueBuffer() {
+        if (!TransactionSynchronizationManager.isSynchronizationActive() || !persistence.isInTransaction()) {
+            return null;
+        }
+        for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+            if (synchronization instanceof QueueBuffer) {
+                return (QueueBuffer) synchronization;
+            }
+        }
+        QueueBuffer buffer = new QueueBuffer();
+        TransactionSynchronizationManager.registerSynchronization(buffer);
+        return buffer;
+    }
+
+    protected FtsQueue createQueueItem(String entityName, Object entityId, FtsChangeType changeType) {
+        FtsQueue q = metadata.create(FtsQueue.class);
+        q.setObjectEntityId(entityId);
+        q.setEntityName(entityName);
+        q.setChangeType(changeType);
+        q.setSourceHost(serverId);
+        q.setCreateTs(timeSource.currentTimestamp());
+        return q;
+    }
+
+    /**
+     * Inserts buffered items in a JDBC batch. Several changes of the same instance are queued once, see
+     * {@link QueuedItemsCoalescer}.
+     *
+     * @return inserted items if they keep the ids of the buffered ones, otherwise an empty list
+     */
+    protected List<FtsQueue> flushQueueBuffer(List<FtsQueue> items) {
+        List<FtsQueue> effectiveItems = new QueuedItemsCoalescer(items).getEffectiveItems();
+        if (isSharedQueue()) {
+            effectiveItems.forEach(this::assignSharedQueueId);
+        }
+        List<String> indexingHosts = getQueueIndexingHosts();
+        String createdBy = userSessionSource.checkCurrentUserSession()
+                ? userSessionSource.getUserSession().getUser().getLogin() : null;
+        DbTypeConverter converter = persistence.getDbTypeConverter();
+
+        // the statement only contains the id column used by the entity, as some databases reject untyped nulls
+        Map<String, List<Object[]>> paramsByIdColumn = new HashMap<>();
+        int count = 0;
+        for (String indexingHost : indexingHosts) {
+            for (FtsQueue item : effectiveItems) {
+                String idColumn;
+                Object entityId;
+                if (item.getEntityId() != null) {
+                    idColumn = "ENTITY_ID";
+                    entityId = converter.getSqlObject(item.getEntityId());
+                } else if (item.getStringEntityId() != null) {
+                    idColumn = "STRING_ENTITY_ID";
+                    entityId = item.getStringEntityId();
+                } else if (item.getIntEntityId() != null) {
+                    idColumn = "INT_ENTITY_ID";
+                    entityId = item.getIntEntityId();
+                } else {
+                    idColumn = "LONG_ENTITY_ID";
+                    entityId = item.getLongEntityId();
                 }
+                paramsByIdColumn.computeIfAbsent(idColumn, k -> new ArrayList<>()).add(new Object[]{
+                        // the ids of the items are kept if each change is queued once
+                        converter.getSqlObject(indexingHosts.size() == 1 ? item.getId() : UUID.randomUUID()),
+                        converter.getSqlObject(item.getCreateTs()),
+                        createdBy,
+                        entityId,
+                        item.getEntityName(),
+                        item.getChangeType().getId(),
+                        item.getSourceHost(),
+                        indexingHost,
+                        converter.getSqlObject(Boolean.FALSE)
+                });
+                count++;
+            }
+        }
+
+        // Join to an existing transaction in main DB or create a new one if the buffer belongs to an additional DB
+        try (Transaction tx = persistence.getTransaction()) {
+            Connection connection = persistence.getEntityManager().getConnection();
+            QueryRunner runner = new QueryRunner();
+            for (Map.Entry<String, List<Object[]>> entry : paramsByIdColumn.entrySet()) {
+                String sql = "insert into SYS_FTS_QUEUE (ID, CREATE_TS, CREATED_BY, " + entry.getKey() +
+                        ", ENTITY_NAME, CHANGE_TYPE, SOURCE_HOST, INDEXING_HOST, FAKE) " +
+                        "values (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+                runner.batch(connection, sql, entry.getValue().toArray(new Object[0][]));
             }
             tx.commit();
+        } catch (SQLException e) {
+            throw new RuntimeException("Error inserting items to the FTS queue", e);
         }
+        log.debug("{} changes inserted to the FTS queue as {} items", items.size(), count);
+        return indexingHosts.size() == 1 ? effectiveItems : Collections.emptyList();
     }
 
     @Override
@@ -130,15 +311,15 @@ public class FtsSenderBean implements FtsSender {
         persistence.getEntityManager().persist(q);
     }
 
-    protected void persistQueueItem(String entityName, Object entityId, FtsChangeType changeType,
-                                    @Nullable String indexingHost) {
-        FtsQueue q = metadata.create(FtsQueue.class);
-        q.setObjectEntityId(entityId);
-        q.setEntityName(entityName);
-        q.setChangeType(changeType);
-        q.setSourceHost(serverId);
+    protected FtsQueue persistQueueItem(String entityName, Object entityId, FtsChangeType changeType,
+                                        @Nullable String indexingHost) {
+        FtsQueue q = createQueueItem(entityName, entityId, changeType);
         q.setIndexingHost(indexingHost);
+        if (indexingHost == null && isSharedQueue()) {
+            assignSharedQueueId(q);
+        }
         persistence.getEntityManager().persist(q);
+        return q;
     }
 
     @Override
@@ -147,6 +328,7 @@ public class FtsSenderBean implements FtsSender {
         Query q = em.createQuery("delete from sys$FtsQueue q where q.entityName = ?1");
         q.setParameter(1, entityName);
         q.executeUpdate();
+        manager.resetIndexingAttempts();
     }
 
     @Override
@@ -162,6 +344,63 @@ public class FtsSenderBean implements FtsSender {
         EntityManager em = persistence.getEntityManager();
         Query q = em.createQuery("delete from sys$FtsQueue q");
         q.executeUpdate();
+        manager.resetIndexingAttempts();
+    }
+
+    /**
+     * Queue items collected during a transaction. Buffered items are inserted before the transaction commit. Items
+     * added while the transaction is already committing (e.g. entity changes queued by the platform) or by a buffer
+     * registered then, which is not notified before the commit, are inserted before the transaction completion, still
+     * in the transaction. Inserted items, including the ones persisted directly, are passed to the in-memory queue
+     * after the commit.
+     */
+    protected class QueueBuffer extends TransactionSynchronizationAdapter {
+
+        protected final List<FtsQueue> items = new ArrayList<>();
+
+        protected final List<FtsQueue> insertedItems = new ArrayList<>();
+
+        /**
+         * Set before the completion, further changes of the transaction are persisted directly
+         */
+        protected boolean completing;
+
+        public void add(FtsQueue item) {
+            items.add(item);
+        }
+
+        @Override
+        public void beforeCommit(boolean readOnly) {
+            flush();
+        }
+
+        @Override
+        public void beforeCompletion() {
+            completing = true;
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                // exceptions are not propagated from here, the failed insert has marked the joined transaction
+                // rollback-only, so the commit fails
+                log.error("Error inserting changes to the FTS queue before the transaction completion", e);
+            }
+        }
+
+        @Override
+        public void afterCommit() {
+            if (!insertedItems.isEmpty()) {
+                manager.addCommittedChanges(insertedItems);
+            }
+            indexingDaemon.wakeUp();
+        }
+
+        protected void flush() {
+            if (!items.isEmpty()) {
+                List<FtsQueue> list = new ArrayList<>(items);
+                items.clear();
+                insertedItems.addAll(flushQueueBuffer(list));
+            }
+        }
     }
 
     @Override
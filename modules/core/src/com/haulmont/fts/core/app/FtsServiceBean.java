@@ -68,6 +68,10 @@ public class FtsServiceBean implements FtsService {
 
     @Override
     public SearchResult search(String searchTerm, QueryKey queryKey, FtsSearchOption... searchOptions) {
+        if (queryKey == null && ArrayUtils.contains(searchOptions, FtsSearchOption.WAIT_FOR_PENDING_CHANGES)) {
+            manager.awaitPendingChanges(coreConfig.getSearchWaitTimeout());
+        }
+
         SearchResult searchResult = new SearchResult(searchTerm);
 
         int maxSearchResults = coreConfig.getMaxSearchResults();
@@ -17,15 +17,20 @@
 package com.haulmont.fts.core.jmx;
 
 import com.google.common.base.Strings;
+import com.haulmont.cuba.core.entity.FtsQueue;
 import com.haulmont.cuba.security.app.Authenticated;
+import com.haulmont.fts.core.app.FtsIndexingDaemon;
 import com.haulmont.fts.core.app.FtsManagerAPI;
+import com.haulmont.fts.core.sys.FileContentCache;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
 import javax.inject.Inject;
+import java.util.List;
 import java.util.Queue;
+import java.util.stream.Collectors;
 
 @Component("fts_FtsManagerMBean")
 public class FtsManager implements FtsManagerMBean {
@@ -35,6 +40,12 @@ public class FtsManager implements FtsManagerMBean {
     @Inject
     protected FtsManagerAPI manager;
 
+    @Inject
+    protected FileContentCache fileContentCache;
+
+    @Inject
+    protected FtsIndexingDaemon indexingDaemon;
+
     @Override
     public boolean isEnabled() {
         return manager.isEnabled();
@@ -55,11 +66,27 @@ public class FtsManager implements FtsManagerMBean {
         return manager.isReindexing();
     }
 
+    @Override
+    public boolean isIndexingDaemonRunning() {
+        return indexingDaemon.isRunning();
+    }
+
+    @Override
+    public int getCurrentBatchSize() {
+        return manager.getCurrentBatchSize();
+    }
+
     @Override
     public Queue<String> getReindexEntitiesQueue() {
         return manager.getReindexEntitiesQueue();
     }
 
+    @Override
+    public String getReindexProgress() {
+        String progress = manager.getReindexProgress();
+        return progress != null ? progress : "Not running";
+    }
+
     @Override
     public String processQueue() {
         try {
@@ -82,6 +109,26 @@ public class FtsManager implements FtsManagerMBean {
         return manager.upgrade();
     }
 
+    @Override
+    public String backfillUniqueKeys() {
+        try {
+            int count = manager.backfillUniqueKeys();
+            if (manager.isUniqueKeysIndex()) {
+                return String.format("Done %d documents, all documents contain the unique key", count);
+            }
+            return String.format("Done %d documents, failed instances are added to the queue, " +
+                    "run again after the queue is processed", count);
+        } catch (Throwable e) {
+            log.error("Error", e);
+            return ExceptionUtils.getStackTrace(e);
+        }
+    }
+
+    @Override
+    public boolean isUniqueKeysIndex() {
+        return manager.isUniqueKeysIndex();
+    }
+
     @Authenticated
     @Override
     public String reindexEntity(String entityName) {
@@ -151,6 +198,50 @@ public class FtsManager implements FtsManagerMBean {
         }
     }
 
+    @Authenticated
+    @Override
+    public String directReindexEntity(String entityName) {
+        if (Strings.isNullOrEmpty(entityName)) return "Fill entity name";
+        try {
+            // documents are replaced by the unique key, so the entity stays searchable during the reindex
+            int count = manager.directReindexEntity(entityName);
+            return String.format("Reindexed %d items", count);
+        } catch (Throwable e) {
+            log.error("Error", e);
+            return ExceptionUtils.getStackTrace(e);
+        }
+    }
+
+    @Authenticated
+    @Override
+    public String directReindexAll() {
+        try {
+            int count = manager.directReindexAll();
+            return String.format("Reindexed %d items", count);
+        } catch (Throwable e) {
+            log.error("Error", e);
+            return ExceptionUtils.getStackTrace(e);
+        }
+    }
+
+    @Authenticated
+    @Override
+    public String rebuildIndex() {
+        try {
+            int count = manager.rebuildIndex();
+            return String.format("Index is rebuilt, %d items indexed", count);
+        } catch (Throwable e) {
+            log.error("Error", e);
+            return ExceptionUtils.getStackTrace(e);
+        }
+    }
+
+    @Override
+    public String getDirectReindexProgress() {
+        String progress = manager.getDirectReindexProgress();
+        return progress != null ? progress : "Not running";
+    }
+
     @Override
     public String processEntireQueue() {
         try {
@@ -176,4 +267,45 @@ public class FtsManager implements FtsManagerMBean {
     public String getLatestIndexFormatVersion() {
         return manager.getLatestIndexFormatVersion();
     }
-}
\ No newline at end of file
+
+    @Override
+    public String clearFileContentCache() {
+        try {
+            fileContentCache.clear();
+            return "File content cache is cleared";
+        } catch (Throwable e) {
+            log.error("Error", e);
+            return ExceptionUtils.getStackTrace(e);
+        }
+    }
+
+    @Authenticated
+    @Override
+    public String listDeadLetterItems(int maxResults) {
+        try {
+            List<FtsQueue> items = manager.getDeadLetterItems(maxResults > 0 ? maxResults : 100);
+            if (items.isEmpty()) {
+                return "No dead letter items";
+            }
+            return items.stream()
+                    .map(item -> String.format("%s %s-%s %s (queued %s)", item.getId(), item.getEntityName(),
+                            item.getObjectEntityId(), item.getChangeType(), item.getCreateTs()))
+                    .collect(Collectors.joining("\n"));
+        } catch (Throwable e) {
+            log.error("Error", e);
+            return ExceptionUtils.getStackTrace(e);
+        }
+    }
+
+    @Authenticated
+    @Override
+    public String retryDeadLetterItems() {
+        try {
+            int count = manager.retryDeadLetterItems();
+            return String.format("%d items returned to the queue", count);
+        } catch (Throwable e) {
+            log.error("Error", e);
+            return ExceptionUtils.getStackTrace(e);
+        }
+    }
+}
@@ -32,8 +32,14 @@ public interface FtsManagerMBean {
 
     boolean isReindexing();
 
+    boolean isIndexingDaemonRunning();
+
+    int getCurrentBatchSize();
+
     Queue<String> getReindexEntitiesQueue();
 
+    String getReindexProgress();
+
     @JmxRunAsync
     String processQueue();
 
@@ -43,6 +49,12 @@ public interface FtsManagerMBean {
     @JmxRunAsync
     String upgrade();
 
+    @JmxRunAsync
+    @ManagedOperation(description = "Reindex documents created before the unique key field was introduced")
+    String backfillUniqueKeys();
+
+    boolean isUniqueKeysIndex();
+
     @JmxRunAsync
     @ManagedOperation(description = "Reindex the given entity synchronously")
     @ManagedOperationParameters({@ManagedOperationParameter(name = "entityName", description = "")})
@@ -61,6 +73,26 @@ public interface FtsManagerMBean {
             "in batches by the invocation of reindexNextBatch method from a scheduled task")
     String asyncReindexAll();
 
+    @JmxRunAsync
+    @ManagedOperation(description = "Reindex the given entity writing documents directly to the index, " +
+            "without adding instances to the fts queue. Existing documents are replaced, use rebuildIndex " +
+            "to remove documents of instances that don't exist anymore")
+    @ManagedOperationParameters({@ManagedOperationParameter(name = "entityName", description = "")})
+    String directReindexEntity(String entityName);
+
+    @JmxRunAsync
+    @ManagedOperation(description = "Reindex all entities writing documents directly to the index, " +
+            "without adding instances to the fts queue. Existing documents are replaced, use rebuildIndex " +
+            "to remove documents of instances that don't exist anymore")
+    String directReindexAll();
+
+    @JmxRunAsync
+    @ManagedOperation(description = "Rebuild the index of all entities in a shadow directory and replace the live " +
+            "index with it. The live index serves searches during the rebuild")
+    String rebuildIndex();
+
+    String getDirectReindexProgress();
+
     @JmxRunAsync
     String processEntireQueue();
 
@@ -73,4 +105,15 @@ public interface FtsManagerMBean {
 
     @ManagedOperation(description = "Returns last index format version supported by lucene")
     String getLatestIndexFormatVersion();
+
+    @ManagedOperation(description = "Deletes the text extracted from files and cached on disk")
+    String clearFileContentCache();
+
+    @ManagedOperation(description = "Lists queue items that have failed to be indexed too many times " +
+            "and are not processed anymore")
+    @ManagedOperationParameters({@ManagedOperationParameter(name = "maxResults", description = "")})
+    String listDeadLetterItems(int maxResults);
+
+    @ManagedOperation(description = "Returns the dead letter items to the queue, so they are processed again")
+    String retryDeadLetterItems();
 }
@@ -22,10 +22,19 @@ import com.haulmont.chile.core.model.MetaProperty;
 import com.haulmont.cuba.core.global.Configuration;
 import com.haulmont.cuba.core.global.GlobalConfig;
 import com.haulmont.cuba.core.global.Metadata;
+import com.haulmont.cuba.core.global.Scripting;
+import com.haulmont.cuba.core.global.View;
+import com.haulmont.cuba.core.global.ViewProperty;
+import com.haulmont.cuba.core.global.ViewRepository;
 import com.haulmont.cuba.core.sys.AppContext;
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.Script;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.text.StringTokenizer;
+import org.codehaus.groovy.control.CompilationFailedException;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.customizers.ImportCustomizer;
 import org.dom4j.Document;
 import org.dom4j.Element;
 import org.slf4j.Logger;
@@ -34,6 +43,7 @@ import org.springframework.core.io.DefaultResourceLoader;
 import org.springframework.core.io.Resource;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import java.io.IOException;
 import java.io.InputStream;
@@ -66,6 +76,14 @@ public class ConfigLoader {
     @Inject
     private Metadata metadata;
 
+    @Inject
+    private ViewRepository viewRepository;
+
+    @Inject
+    private Scripting scripting;
+
+    protected GroovyClassLoader scriptClassLoader;
+
     @Inject
     public void setConfiguration(Configuration configuration) {
         confDir = configuration.getConfig(GlobalConfig.class).getConfDir();
@@ -141,11 +159,86 @@ public class ConfigLoader {
         boolean show = showStr == null || Boolean.valueOf(showStr);
 
         EntityDescr entityDescr = getNewEntityDescr(metaClass, searchableIfScript, searchablesScript, show);
+        entityDescr.setSearchableIfScriptClass(compileScript(searchableIfScript, metaClass));
+        entityDescr.setSearchablesScriptClass(compileScript(searchablesScript, metaClass));
         setIncludedFields(entityElem, metaClass, entityDescr);
         setExcludedFields(entityElem, metaClass, entityDescr);
+        entityDescr.setView(createView(metaClass, entityDescr));
         return entityDescr;
     }
 
+    /**
+     * Compiles a script once, so it is not parsed on each evaluation. The script gets the same default imports as
+     * scripts evaluated by {@link Scripting}.
+     *
+     * @return script class or null if the script is empty or can't be compiled, in the latter case the text is
+     * evaluated each time and the error is reported on evaluation
+     */
+    @Nullable
+    protected Class<? extends Script> compileScript(@Nullable String scriptText, MetaClass metaClass) {
+        if (StringUtils.isBlank(scriptText)) {
+            return null;
+        }
+        try {
+            //noinspection unchecked
+            return getScriptClassLoader().parseClass(scriptText);
+        } catch (CompilationFailedException e) {
+            log.error("Unable to compile FTS script of {}", metaClass.getName(), e);
+            return null;
+        }
+    }
+
+    protected GroovyClassLoader getScriptClassLoader() {
+        if (scriptClassLoader == null) {
+            CompilerConfiguration configuration = new CompilerConfiguration();
+            String imports = AppContext.getProperty("cuba.groovyEvaluatorImport");
+            if (!StringUtils.isBlank(imports)) {
+                ImportCustomizer importCustomizer = new ImportCustomizer();
+                importCustomizer.addImports(new StringTokenizer(imports, ", ").getTokenArray());
+                configuration.addCompilationCustomizers(importCustomizer);
+            }
+            scriptClassLoader = new GroovyClassLoader(scripting.getClassLoader(), configuration);
+        }
+        return scriptClassLoader;
+    }
+
+    /**
+     * Creates a view that is used to load instances for indexing. The view contains local properties of the entity
+     * and all indexed property paths, so linked entities are fetched together with the instance instead of being lazy
+     * loaded one by one.
+     */
+    protected View createView(MetaClass metaClass, EntityDescr entityDescr) {
+        View view = View.copy(viewRepository.getView(metaClass, View.LOCAL));
+        for (String property : entityDescr.getPropertyNames()) {
+            addPropertyPathToView(view, metaClass, property.split("\\."));
+        }
+        return view;
+    }
+
+    protected void addPropertyPathToView(View view, MetaClass metaClass, String[] path) {
+        View currentView = view;
+        MetaClass currentMetaClass = metaClass;
+        for (String propertyName : path) {
+            MetaProperty metaProperty = currentMetaClass.getProperty(propertyName);
+            if (metaProperty == null || !metadata.getTools().isPersistent(metaProperty)) {
+                return;
+            }
+            if (!metaProperty.getRange().isClass()) {
+                currentView.addProperty(propertyName);
+                return;
+            }
+            MetaClass propertyMetaClass = metaProperty.getRange().asClass();
+            ViewProperty viewProperty = currentView.getProperty(propertyName);
+            View propertyView = viewProperty != null ? viewProperty.getView() : null;
+            if (propertyView == null) {
+                propertyView = new View(propertyMetaClass.getJavaClass(), false);
+                currentView.addProperty(propertyName, propertyView);
+            }
+            currentView = propertyView;
+            currentMetaClass = propertyMetaClass;
+        }
+    }
+
     protected void setIncludedFields(Element entityElem, MetaClass metaClass, EntityDescr entityDescr) {
         for (Element element : entityElem.elements("include")) {
             String re = element.attributeValue("re");
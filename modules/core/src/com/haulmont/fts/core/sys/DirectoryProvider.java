@@ -18,9 +18,12 @@ package com.haulmont.fts.core.sys;
 
 import com.haulmont.cuba.core.global.GlobalConfig;
 import com.haulmont.fts.global.FtsConfig;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
 import javax.inject.Inject;
@@ -28,6 +31,7 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 
 /**
  * Class is used for getting an instance of the Lucene index {@link Directory}
@@ -35,6 +39,12 @@ import java.nio.file.Paths;
 @Component("fts_DirectoryProvider")
 public class DirectoryProvider {
 
+    private static final Logger log = LoggerFactory.getLogger(DirectoryProvider.class);
+
+    protected static final String SHADOW_DIR_SUFFIX = ".shadow";
+
+    protected static final String OLD_DIR_SUFFIX = ".old";
+
     protected volatile Directory directory;
 
     @Inject
@@ -47,11 +57,8 @@ public class DirectoryProvider {
         if (directory == null) {
             synchronized (this) {
                 if (directory == null) {
-                    String dir = ftsConfig.getIndexDir();
-                    if (StringUtils.isBlank(dir)) {
-                        dir = globalConfig.getDataDir() + "/ftsindex";
-                    }
-                    Path file = Paths.get(dir);
+                    Path file = getIndexPath();
+                    String dir = file.toString();
                     if (!Files.exists(file)) {
                         try {
                             Files.createDirectory(file);
@@ -72,4 +79,75 @@ public class DirectoryProvider {
         }
         return directory;
     }
+
+    /**
+     * Returns the path of the index directory specified by {@link FtsConfig#getIndexDir()}
+     */
+    public Path getIndexPath() {
+        String dir = ftsConfig.getIndexDir();
+        if (StringUtils.isBlank(dir)) {
+            dir = globalConfig.getDataDir() + "/ftsindex";
+        }
+        return Paths.get(dir);
+    }
+
+    /**
+     * Returns the path of the directory the index is rebuilt in, see {@link #swapShadowDirectory()}
+     */
+    public Path getShadowIndexPath() {
+        Path indexPath = getIndexPath().toAbsolutePath();
+        return indexPath.resolveSibling(indexPath.getFileName() + SHADOW_DIR_SUFFIX);
+    }
+
+    /**
+     * Opens an empty shadow directory. Files left by a previous unfinished rebuild are deleted.
+     */
+    public Directory createShadowDirectory() {
+        Path shadowPath = getShadowIndexPath();
+        try {
+            deleteDirectory(shadowPath);
+            Files.createDirectories(shadowPath);
+            return FSDirectory.open(shadowPath);
+        } catch (IOException e) {
+            throw new RuntimeException("Error on shadow index directory initialization", e);
+        }
+    }
+
+    /**
+     * Replaces the index directory with the shadow directory. The index writer must be closed before the invocation,
+     * the directory returned by {@link #getDirectory()} after the invocation contains the rebuilt index.
+     */
+    public synchronized void swapShadowDirectory() throws IOException {
+        Path indexPath = getIndexPath().toAbsolutePath();
+        Path shadowPath = getShadowIndexPath();
+        Path oldPath = indexPath.resolveSibling(indexPath.getFileName() + OLD_DIR_SUFFIX);
+        if (!Files.isDirectory(shadowPath)) {
+            throw new IllegalStateException("Shadow index directory " + shadowPath + " doesn't exist");
+        }
+
+        if (directory != null) {
+            directory.close();
+            directory = null;
+        }
+        deleteDirectory(oldPath);
+        Files.move(indexPath, oldPath, StandardCopyOption.ATOMIC_MOVE);
+        try {
+            Files.move(shadowPath, indexPath, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.move(oldPath, indexPath, StandardCopyOption.ATOMIC_MOVE);
+            throw e;
+        }
+        try {
+            deleteDirectory(oldPath);
+        } catch (IOException e) {
+            // files can be still opened by searchers of the old index
+            log.warn("Unable to delete the old index directory {}", oldPath, e);
+        }
+    }
+
+    protected void deleteDirectory(Path path) throws IOException {
+        if (Files.exists(path)) {
+            FileUtils.deleteDirectory(path.toFile());
+        }
+    }
 }
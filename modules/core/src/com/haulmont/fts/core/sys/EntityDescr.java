@@ -19,6 +19,10 @@ import com.haulmont.chile.core.model.MetaClass;
 import com.haulmont.chile.core.model.MetaPropertyPath;
 import com.haulmont.cuba.core.global.AppBeans;
 import com.haulmont.cuba.core.global.MetadataTools;
+import com.haulmont.cuba.core.global.View;
+import groovy.lang.Script;
+
+import javax.annotation.Nullable;
 
 import java.util.*;
 
@@ -32,8 +36,14 @@ public class EntityDescr {
 
     protected String searchablesScript;
 
+    protected Class<? extends Script> searchableIfScriptClass;
+
+    protected Class<? extends Script> searchablesScriptClass;
+
     protected boolean show;
 
+    protected View view;
+
     public EntityDescr(MetaClass metaClass, String searchableIfScript, String searchablesScript, boolean show) {
         this.metaClass = metaClass;
         this.searchableIfScript = searchableIfScript;
@@ -53,6 +63,30 @@ public class EntityDescr {
         return searchablesScript;
     }
 
+    /**
+     * @return the compiled searchableIf script or null if the entity has no such script or it was not compiled
+     */
+    @Nullable
+    public Class<? extends Script> getSearchableIfScriptClass() {
+        return searchableIfScriptClass;
+    }
+
+    public void setSearchableIfScriptClass(@Nullable Class<? extends Script> searchableIfScriptClass) {
+        this.searchableIfScriptClass = searchableIfScriptClass;
+    }
+
+    /**
+     * @return the compiled searchables script or null if the entity has no such script or it was not compiled
+     */
+    @Nullable
+    public Class<? extends Script> getSearchablesScriptClass() {
+        return searchablesScriptClass;
+    }
+
+    public void setSearchablesScriptClass(@Nullable Class<? extends Script> searchablesScriptClass) {
+        this.searchablesScriptClass = searchablesScriptClass;
+    }
+
     public void addProperty(String name) {
         MetaPropertyPath propertyPath = metaClass.getPropertyPath(name);
 
@@ -96,4 +130,16 @@ public class EntityDescr {
     public boolean isShow() {
         return show;
     }
+
+    /**
+     * @return a view that contains all properties used for indexing or null if the view was not built
+     */
+    @Nullable
+    public View getView() {
+        return view;
+    }
+
+    public void setView(@Nullable View view) {
+        this.view = view;
+    }
 }
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2008-2019 Haulmont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.haulmont.fts.core.sys;
+
+import com.haulmont.cuba.core.entity.FileDescriptor;
+
+import javax.annotation.Nullable;
+
+/**
+ * INTERNAL.
+ * Local on-disk cache of the text extracted from files, so the files are not parsed again on reindex.
+ */
+public interface FileContentCache {
+
+    String NAME = "fts_FileContentCache";
+
+    /**
+     * @return the text extracted from the file earlier or null if the cache doesn't contain it
+     */
+    @Nullable
+    String get(FileDescriptor fileDescriptor);
+
+    /**
+     * Saves the text extracted from the file. Least recently used entries are evicted if the cache exceeds
+     * {@link com.haulmont.fts.global.FtsConfig#getFileContentCacheMaxSize()}.
+     */
+    void put(FileDescriptor fileDescriptor, String content);
+
+    /**
+     * Removes all entries of the cache.
+     */
+    void clear();
+}
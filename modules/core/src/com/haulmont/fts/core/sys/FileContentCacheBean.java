@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2008-2019 Haulmont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.haulmont.fts.core.sys;
+
+import com.haulmont.cuba.core.entity.FileDescriptor;
+import com.haulmont.fts.global.FtsConfig;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the extracted text in gzipped files of the directory next to the index directory. An entry is identified by
+ * the file descriptor id, size and creation date, and by the content length limit the text was extracted with.
+ * The modification time of an entry file is updated on each access and is used for the LRU eviction.
+ */
+@Component(FileContentCache.NAME)
+public class FileContentCacheBean implements FileContentCache {
+
+    private static final Logger log = LoggerFactory.getLogger(FileContentCacheBean.class);
+
+    protected static final String CACHE_DIR_SUFFIX = ".textcache";
+
+    protected static final String ENTRY_EXT = ".txt.gz";
+
+    @Inject
+    protected FtsConfig ftsConfig;
+
+    @Inject
+    protected DirectoryProvider directoryProvider;
+
+    protected volatile Path cacheDir;
+
+    /**
+     * Total size of the entries, -1 until the cache directory is scanned.
+     */
+    protected final AtomicLong size = new AtomicLong(-1);
+
+    @Nullable
+    @Override
+    public String get(FileDescriptor fileDescriptor) {
+        if (!ftsConfig.getFileContentCacheEnabled()) {
+            return null;
+        }
+        Path entry = getCacheDir().resolve(createEntryName(fileDescriptor));
+        if (!Files.exists(entry)) {
+            return null;
+        }
+        try (InputStream stream = new GZIPInputStream(Files.newInputStream(entry))) {
+            String content = IOUtils.toString(stream, StandardCharsets.UTF_8);
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            return content;
+        } catch (NoSuchFileException e) {
+            // evicted concurrently
+            return null;
+        } catch (IOException e) {
+            log.warn("Unable to read the cached content of the file {}", fileDescriptor.getId(), e);
+            return null;
+        }
+    }
+
+    @Override
+    public void put(FileDescriptor fileDescriptor, String content) {
+        if (!ftsConfig.getFileContentCacheEnabled()) {
+            return;
+        }
+        Path dir = getCacheDir();
+        Path entry = dir.resolve(createEntryName(fileDescriptor));
+        Path tmp = dir.resolve(UUID.randomUUID() + ".tmp");
+        try {
+            try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(tmp)),
+                    StandardCharsets.UTF_8)) {
+                writer.write(content);
+            }
+            long entrySize = Files.size(tmp);
+            long totalSize;
+            // the replaced entry is measured and moved atomically with respect to other puts and the eviction
+            synchronized (this) {
+                // the size is initialized before the move, so the scan doesn't count the new entry
+                getSize();
+                long replacedSize = Files.exists(entry) ? Files.size(entry) : 0;
+                Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                totalSize = size.addAndGet(entrySize - replacedSize);
+            }
+            if (totalSize > getMaxSize()) {
+                evict();
+            }
+        } catch (IOException e) {
+            log.warn("Unable to cache the content of the file {}", fileDescriptor.getId(), e);
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        for (Path entry : listEntries()) {
+            try {
+                Files.deleteIfExists(entry);
+            } catch (IOException e) {
+                log.warn("Unable to delete {}", entry, e);
+            }
+        }
+        size.set(0);
+    }
+
+    protected String createEntryName(FileDescriptor fileDescriptor) {
+        long size = fileDescriptor.getSize() != null ? fileDescriptor.getSize() : 0;
+        long createTs = fileDescriptor.getCreateDate() != null ? fileDescriptor.getCreateDate().getTime() : 0;
+        return String.format("%s-%d-%d-%d%s", fileDescriptor.getId(), size, createTs,
+                ftsConfig.getFileContentMaxLength(), ENTRY_EXT);
+    }
+
+    protected long getMaxSize() {
+        return ftsConfig.getFileContentCacheMaxSize() * 1024L * 1024L;
+    }
+
+    protected long getSize() {
+        long current = size.get();
+        if (current < 0) {
+            synchronized (this) {
+                current = size.get();
+                if (current < 0) {
+                    current = 0;
+                    for (Path entry : listEntries()) {
+                        try {
+                            current += Files.size(entry);
+                        } catch (IOException ignored) {
+                        }
+                    }
+                    size.set(current);
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Deletes least recently used entries until the cache takes 90% of the maximum size.
+     */
+    protected synchronized void evict() {
+        List<Entry> entries = new ArrayList<>();
+        long totalSize = 0;
+        for (Path path : listEntries()) {
+            try {
+                Entry entry = new Entry(path, Files.getLastModifiedTime(path).toMillis(), Files.size(path));
+                entries.add(entry);
+                totalSize += entry.size;
+            } catch (IOException ignored) {
+            }
+        }
+        entries.sort(Comparator.comparingLong(entry -> entry.lastAccessTs));
+
+        long targetSize = getMaxSize() / 10 * 9;
+        for (Entry entry : entries) {
+            if (totalSize <= targetSize) {
+                break;
+            }
+            try {
+                Files.deleteIfExists(entry.path);
+                totalSize -= entry.size;
+            } catch (IOException e) {
+                log.warn("Unable to delete {}", entry.path, e);
+            }
+        }
+        size.set(totalSize);
+        log.debug("File content cache is reduced to {} bytes", totalSize);
+    }
+
+    protected List<Path> listEntries() {
+        List<Path> entries = new ArrayList<>();
+        try (Stream<Path> stream = Files.list(getCacheDir())) {
+            stream.filter(path -> path.getFileName().toString().endsWith(ENTRY_EXT))
+                    .forEach(entries::add);
+        } catch (IOException e) {
+            log.warn("Unable to list the file content cache directory", e);
+        }
+        return entries;
+    }
+
+    protected Path getCacheDir() {
+        if (cacheDir == null) {
+            synchronized (this) {
+                if (cacheDir == null) {
+                    Path indexPath = directoryProvider.getIndexPath().toAbsolutePath();
+                    Path dir = indexPath.resolveSibling(indexPath.getFileName() + CACHE_DIR_SUFFIX);
+                    try {
+                        Files.createDirectories(dir);
+                    } catch (IOException e) {
+                        throw new RuntimeException("Directory " + dir + " doesn't exist and can not be created", e);
+                    }
+                    cacheDir = dir;
+                }
+            }
+        }
+        return cacheDir;
+    }
+
+    protected static class Entry {
+        protected final Path path;
+        protected final long lastAccessTs;
+        protected final long size;
+
+        protected Entry(Path path, long lastAccessTs, long size) {
+            this.path = path;
+            this.lastAccessTs = lastAccessTs;
+            this.size = size;
+        }
+    }
+}
@@ -53,4 +53,26 @@ public interface IndexSearcherProvider {
      * Returns static DefaultQueryCache from {@link IndexSearcher}.
      */
     LRUQueryCache getDefaultQueryCache();
+
+    /**
+     * Waits until searchers acquired by {@link #acquireIndexSearcher()} see all index modifications up to the given
+     * {@link org.apache.lucene.index.IndexWriter} sequence number.
+     *
+     * @param generation sequence number returned by an index modification
+     * @param maxMillis  maximum time to wait
+     * @return true if the generation became visible, false if the time has elapsed
+     */
+    boolean waitForGeneration(long generation, int maxMillis);
+
+    /**
+     * Stops refreshing of the current searcher, so the index writer can be closed. The current searcher keeps serving
+     * searches until {@link #reopenSearcherManager()} is invoked.
+     */
+    void suspendRefresh();
+
+    /**
+     * Opens a new {@link SearcherManager} for the current index writer and closes the previous one. Searchers acquired
+     * from the previous manager stay valid until they are released.
+     */
+    void reopenSearcherManager();
 }
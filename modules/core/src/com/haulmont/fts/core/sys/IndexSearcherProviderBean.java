@@ -16,29 +16,45 @@
 
 package com.haulmont.fts.core.sys;
 
+import com.haulmont.fts.global.FtsConfig;
+import org.apache.lucene.search.ControlledRealTimeReopenThread;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.LRUQueryCache;
 import org.apache.lucene.search.SearcherFactory;
 import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 import java.io.IOException;
 
 @Component(IndexSearcherProvider.NAME)
 public class IndexSearcherProviderBean implements IndexSearcherProvider {
 
+    private static final Logger log = LoggerFactory.getLogger(IndexSearcherProviderBean.class);
+
     protected volatile SearcherManager searcherManager;
 
+    protected volatile ControlledRealTimeReopenThread<IndexSearcher> reopenThread;
+
     @Inject
     protected IndexWriterProvider indexWriterProvider;
 
+    @Inject
+    protected FtsConfig ftsConfig;
+
     public SearcherManager getSearcherManager() {
         if (searcherManager == null) {
             synchronized (this) {
                 if (searcherManager == null) {
                     try {
-                        searcherManager = createSearcherManager();
+                        SearcherManager manager = createSearcherManager();
+                        reopenThread = createReopenThread(manager);
+                        reopenThread.start();
+                        searcherManager = manager;
                     } catch (IOException e) {
                         throw new RuntimeException("Error on creating SearcherManager", e);
                     }
@@ -53,6 +69,9 @@ public class IndexSearcherProviderBean implements IndexSearcherProvider {
         IndexSearcher indexSearcher = null;
         try {
             indexSearcher = searcherManager.acquire();
+        } catch (AlreadyClosedException e) {
+            // the manager has been replaced by reopenSearcherManager()
+            return acquireIndexSearcher();
         } catch (IOException e) {
             throw new RuntimeException("Error on acquiring an IndexSearcher", e);
         }
@@ -72,7 +91,70 @@ public class IndexSearcherProviderBean implements IndexSearcherProvider {
         return new SearcherManager(indexWriterProvider.getIndexWriter(), new SearcherFactory());
     }
 
+    /**
+     * Creates a thread that refreshes the searcher at least every {@link FtsConfig#getSearcherMaxStaleTime()}
+     * milliseconds and in {@link FtsConfig#getSearcherMinStaleTime()} milliseconds if somebody waits for a
+     * generation.
+     */
+    protected ControlledRealTimeReopenThread<IndexSearcher> createReopenThread(SearcherManager manager) {
+        ControlledRealTimeReopenThread<IndexSearcher> thread = new ControlledRealTimeReopenThread<>(
+                indexWriterProvider.getIndexWriter(), manager,
+                ftsConfig.getSearcherMaxStaleTime() / 1000.0, ftsConfig.getSearcherMinStaleTime() / 1000.0);
+        thread.setName("fts-searcher-reopen");
+        thread.setDaemon(true);
+        return thread;
+    }
+
     public LRUQueryCache getDefaultQueryCache() {
         return (LRUQueryCache) IndexSearcher.getDefaultQueryCache();
     }
+
+    @Override
+    public boolean waitForGeneration(long generation, int maxMillis) {
+        getSearcherManager();
+        try {
+            return reopenThread.waitForGeneration(generation, Math.max(maxMillis, 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized void suspendRefresh() {
+        if (reopenThread != null) {
+            reopenThread.close();
+        }
+    }
+
+    @Override
+    public synchronized void reopenSearcherManager() {
+        SearcherManager previousManager = searcherManager;
+        ControlledRealTimeReopenThread<IndexSearcher> previousThread = reopenThread;
+        try {
+            SearcherManager manager = createSearcherManager();
+            reopenThread = createReopenThread(manager);
+            reopenThread.start();
+            searcherManager = manager;
+        } catch (IOException e) {
+            throw new RuntimeException("Error on creating SearcherManager", e);
+        }
+        if (previousThread != null) {
+            previousThread.close();
+        }
+        if (previousManager != null) {
+            try {
+                previousManager.close();
+            } catch (IOException e) {
+                log.warn("Unable to close the previous SearcherManager", e);
+            }
+        }
+    }
+
+    @PreDestroy
+    protected void stopReopenThread() {
+        if (reopenThread != null) {
+            reopenThread.close();
+        }
+    }
 }
@@ -27,8 +27,10 @@ import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.KeepOnlyLastCommitDeletionPolicy;
 import org.apache.lucene.morphology.LuceneMorphology;
 import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.Directory;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import java.io.IOException;
 import java.util.HashMap;
@@ -55,4 +57,38 @@ public interface IndexWriterProvider {
      * Method returns an instance of the Lucene {@link IndexWriter}.
      */
     IndexWriter getIndexWriter();
+
+    /**
+     * Creates a new writer with the same configuration as the application one for the given directory, e.g. to rebuild
+     * the index in a separate directory. The caller is responsible for closing the writer.
+     */
+    IndexWriter createIndexWriter(Directory directory);
+
+    /**
+     * Closes the application writer. A new writer is opened on the next {@link #getIndexWriter()} invocation.
+     */
+    void closeIndexWriter();
+
+    /**
+     * Closes the application writer, replaces the index directory and opens a new writer. Other threads can't open a
+     * writer on the replaced directory, {@link #getIndexWriter()} waits until the new writer is opened.
+     */
+    void reopenIndexWriter(DirectoryReplacement directoryReplacement) throws IOException;
+
+    /**
+     * Returns a value of the commit user data entry. The value is taken from the last commit or from the latest
+     * {@link #setCommitData(String, String)} invocation. The values are cached, so the writer is not accessed if it is
+     * already opened.
+     */
+    @Nullable
+    String getCommitData(String key);
+
+    /**
+     * Sets a commit user data entry. The value is persisted with the next {@link IndexWriter#commit()}.
+     */
+    void setCommitData(String key, String value);
+
+    interface DirectoryReplacement {
+        void replace() throws IOException;
+    }
 }
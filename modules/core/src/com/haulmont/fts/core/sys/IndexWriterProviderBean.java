@@ -21,20 +21,22 @@ import com.haulmont.fts.core.sys.morphology.MultiMorphologyAnalyzer;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
 import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.KeepOnlyLastCommitDeletionPolicy;
 import org.apache.lucene.morphology.LuceneMorphology;
+import org.apache.lucene.store.Directory;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import static com.haulmont.fts.core.sys.LuceneConstants.FLD_LINKS;
-import static com.haulmont.fts.core.sys.LuceneConstants.FLD_MORPHOLOGY_ALL;
+import static com.haulmont.fts.core.sys.LuceneConstants.*;
 
 @Component(IndexWriterProvider.NAME)
 public class IndexWriterProviderBean implements IndexWriterProvider {
@@ -44,33 +46,122 @@ public class IndexWriterProviderBean implements IndexWriterProvider {
 
     protected volatile IndexWriter indexWriter;
 
+    /**
+     * Commit user data of the application writer, null until the writer is opened
+     */
+    protected volatile Map<String, String> commitData;
+
     /**
      * Method returns an instance of the Lucene {@link IndexWriter}.
      */
     @Override
     public IndexWriter getIndexWriter() {
-        if (indexWriter == null) {
+        IndexWriter writer = indexWriter;
+        if (writer == null) {
             synchronized (this) {
-                if (indexWriter == null) {
-                    indexWriter = createWriter();
+                writer = indexWriter;
+                if (writer == null) {
+                    writer = openWriter();
                 }
             }
         }
-        return indexWriter;
+        return writer;
+    }
+
+    protected IndexWriter openWriter() {
+        IndexWriter writer = createWriter();
+        commitData = readCommitData(writer);
+        indexWriter = writer;
+        return writer;
+    }
+
+    @Override
+    public IndexWriter createIndexWriter(Directory directory) {
+        return createWriter(directory);
+    }
+
+    @Override
+    public synchronized void closeIndexWriter() {
+        IndexWriter writer = indexWriter;
+        if (writer != null) {
+            // the field is cleared first, so other threads wait for the monitor instead of using the closed writer
+            indexWriter = null;
+            commitData = null;
+            try {
+                writer.close();
+            } catch (IOException e) {
+                throw new RuntimeException("Error on IndexWriter closing", e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void reopenIndexWriter(DirectoryReplacement directoryReplacement) throws IOException {
+        closeIndexWriter();
+        directoryReplacement.replace();
+        openWriter();
     }
 
     protected IndexWriter createWriter() {
+        return createWriter(directoryProvider.getDirectory());
+    }
+
+    protected IndexWriter createWriter(Directory directory) {
         Analyzer analyzer = createAnalyzer();
         try {
             IndexWriterConfig config = new IndexWriterConfig(analyzer);
             config.setIndexDeletionPolicy(new KeepOnlyLastCommitDeletionPolicy());
             config.setMergePolicy(new LiveUpgradeMergePolicy(config.getMergePolicy()));
-            return new IndexWriter(directoryProvider.getDirectory(), config);
+            boolean indexExists = DirectoryReader.indexExists(directory);
+            IndexWriter writer = new IndexWriter(directory, config);
+            if (!indexExists) {
+                // documents of a new index always contain the unique key field
+                putCommitData(writer, COMMIT_DATA_UNIQUE_KEYS, Boolean.TRUE.toString());
+            }
+            return writer;
         } catch (IOException e) {
             throw new RuntimeException("Error on IndexWriter creation", e);
         }
     }
 
+    @Nullable
+    @Override
+    public String getCommitData(String key) {
+        Map<String, String> data = commitData;
+        if (data == null) {
+            getIndexWriter();
+            data = commitData;
+        }
+        return data != null ? data.get(key) : null;
+    }
+
+    @Override
+    public void setCommitData(String key, String value) {
+        putCommitData(getIndexWriter(), key, value);
+    }
+
+    protected void putCommitData(IndexWriter writer, String key, String value) {
+        synchronized (writer) {
+            Map<String, String> data = readCommitData(writer);
+            data.put(key, value);
+            writer.setLiveCommitData(data.entrySet());
+            if (writer == indexWriter) {
+                commitData = new HashMap<>(data);
+            }
+        }
+    }
+
+    protected Map<String, String> readCommitData(IndexWriter writer) {
+        Map<String, String> data = new HashMap<>();
+        Iterable<Map.Entry<String, String>> liveCommitData = writer.getLiveCommitData();
+        if (liveCommitData != null) {
+            for (Map.Entry<String, String> entry : liveCommitData) {
+                data.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return data;
+    }
+
     protected Analyzer createAnalyzer() {
         List<LuceneMorphology> morphologies = MorphologyNormalizer.getAvailableMorphologies();
         Map<String, Analyzer> analyzerPerField = new HashMap<>();
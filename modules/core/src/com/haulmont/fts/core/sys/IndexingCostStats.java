@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2008-2019 Haulmont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.haulmont.fts.core.sys;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Moving averages of the time and memory taken to index an instance of each entity. Used to choose the number of
+ * queued items that fit into a batch.
+ */
+public class IndexingCostStats {
+
+    /**
+     * Weight of the latest measurement in the averages
+     */
+    protected static final double ALPHA = 0.2;
+
+    protected final Map<String, Cost> costs = new ConcurrentHashMap<>();
+
+    /**
+     * Adds a measurement of indexing several instances of the entity.
+     *
+     * @param timeNanos time taken to index the instances
+     * @param size      estimated size in bytes of the created documents
+     */
+    public void record(String entityName, int count, long timeNanos, long size) {
+        if (count <= 0) {
+            return;
+        }
+        costs.compute(entityName, (name, cost) -> {
+            double time = (double) timeNanos / count;
+            double itemSize = (double) size / count;
+            if (cost == null) {
+                return new Cost(time, itemSize);
+            }
+            return new Cost(cost.time + ALPHA * (time - cost.time), cost.size + ALPHA * (itemSize - cost.size));
+        });
+    }
+
+    /**
+     * @return average time in nanoseconds taken to index an instance, or the average of all entities if there are no
+     * measurements for the given one
+     */
+    public double getTime(String entityName) {
+        Cost cost = costs.get(entityName);
+        if (cost != null) {
+            return cost.time;
+        }
+        return costs.values().stream().mapToDouble(c -> c.time).average().orElse(0);
+    }
+
+    /**
+     * @return average size in bytes of the document of an instance, or the average of all entities if there are no
+     * measurements for the given one
+     */
+    public double getSize(String entityName) {
+        Cost cost = costs.get(entityName);
+        if (cost != null) {
+            return cost.size;
+        }
+        return costs.values().stream().mapToDouble(c -> c.size).average().orElse(0);
+    }
+
+    /**
+     * Returns the number of leading items which are expected to be indexed within the given time and memory budget.
+     *
+     * @param entityNames entity names of the queued items in the order of processing
+     * @param timeNanos   time budget, not limited if 0
+     * @param size        memory budget in bytes, not limited if 0
+     * @return number of items, at least 1 if the list is not empty
+     */
+    public int countWithinBudget(List<String> entityNames, long timeNanos, long size) {
+        double totalTime = 0;
+        double totalSize = 0;
+        for (int i = 0; i < entityNames.size(); i++) {
+            totalTime += getTime(entityNames.get(i));
+            totalSize += getSize(entityNames.get(i));
+            if (i > 0 && (timeNanos > 0 && totalTime > timeNanos || size > 0 && totalSize > size)) {
+                return i;
+            }
+        }
+        return entityNames.size();
+    }
+
+    public void clear() {
+        costs.clear();
+    }
+
+    protected static class Cost {
+
+        protected final double time;
+
+        protected final double size;
+
+        protected Cost(double time, double size) {
+            this.time = time;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2008-2019 Haulmont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.haulmont.fts.core.sys;
+
+/**
+ * Indicates that an instance can't be indexed now because of a lack of resources, e.g. all file parsing threads are
+ * busy. The instance must be indexed later, the failure is not caused by the instance itself.
+ */
+public class IndexingPostponedException extends IndexingException {
+    private static final long serialVersionUID = 4806375239572518815L;
+
+    public IndexingPostponedException(String message, Throwable cause) {
+        super(null, null, message, EntityType.OTHER, cause);
+    }
+}
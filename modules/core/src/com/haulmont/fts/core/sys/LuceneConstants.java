@@ -25,4 +25,13 @@ public interface LuceneConstants {
     String FLD_ALL = "all";
     String FLD_LINKS = "links";
     String FLD_MORPHOLOGY_ALL = "morphologyAll";
+    /**
+     * Unique key of the document: entity name and id, see {@link com.haulmont.fts.global.EntityInfo#toString()}
+     */
+    String FLD_KEY = "key";
+
+    /**
+     * Commit user data entry that is set when all documents of the index contain the {@link #FLD_KEY} field
+     */
+    String COMMIT_DATA_UNIQUE_KEYS = "fts.uniqueKeys";
 }
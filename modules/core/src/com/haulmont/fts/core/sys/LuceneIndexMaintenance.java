@@ -28,6 +28,7 @@ import org.springframework.stereotype.Component;
 
 import javax.inject.Inject;
 import java.io.IOException;
+import java.util.Set;
 
 /**
  * Class contains methods for lucene index maintenance
@@ -39,4 +40,18 @@ public interface LuceneIndexMaintenance {
     String optimize();
 
     String upgrade();
+
+    /**
+     * Reindexes documents that were created before the unique {@link LuceneConstants#FLD_KEY} field was introduced.
+     * A legacy document is deleted only after its instance is written with the key field or is not found in the
+     * database. Documents that fail to be reindexed are kept, their instances are added to the FTS queue once and their
+     * keys are added to {@code failedDocuments}, so following invocations of the same run skip them. When no legacy
+     * documents are left, the index is marked by the {@link LuceneConstants#COMMIT_DATA_UNIQUE_KEYS} commit user data
+     * entry and the method does nothing.
+     *
+     * @param maxDocuments    maximum number of documents processed by a single invocation
+     * @param failedDocuments keys of the documents that failed in the current run, updated by the method
+     * @return number of processed documents, including the failed ones
+     */
+    int backfillUniqueKeys(int maxDocuments, Set<String> failedDocuments);
 }
@@ -16,19 +16,36 @@
 
 package com.haulmont.fts.core.sys;
 
+import com.haulmont.cuba.core.Persistence;
+import com.haulmont.cuba.core.app.FtsSender;
+import com.haulmont.cuba.core.entity.FtsChangeType;
+import com.haulmont.cuba.core.entity.FtsQueue;
+import com.haulmont.cuba.core.global.Metadata;
 import com.haulmont.cuba.core.sys.AppContext;
 import com.haulmont.cuba.security.app.Authentication;
 import com.haulmont.fts.global.FtsConfig;
 import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
 import javax.inject.Inject;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.locks.ReentrantLock;
 
+import static com.haulmont.fts.core.sys.LuceneConstants.*;
+
 @Component(LuceneIndexMaintenance.NAME)
 public class LuceneIndexMaintenanceBean implements LuceneIndexMaintenance {
 
@@ -41,6 +58,24 @@ public class LuceneIndexMaintenanceBean implements LuceneIndexMaintenance {
     @Inject
     protected Authentication authentication;
 
+    @Inject
+    protected IndexSearcherProvider indexSearcherProvider;
+
+    @Inject
+    protected LuceneIndexer luceneIndexer;
+
+    @Inject
+    protected LuceneSearcher luceneSearcher;
+
+    @Inject
+    protected Metadata metadata;
+
+    @Inject
+    protected Persistence persistence;
+
+    @Inject
+    protected FtsSender ftsSender;
+
     protected final ReentrantLock optimizeLock = new ReentrantLock();
 
     private final Logger log = LoggerFactory.getLogger(LuceneIndexMaintenanceBean.class);
@@ -103,4 +138,101 @@ public class LuceneIndexMaintenanceBean implements LuceneIndexMaintenance {
             authentication.end();
         }
     }
+
+    @Override
+    public int backfillUniqueKeys(int maxDocuments, Set<String> failedDocuments) {
+        if (Boolean.parseBoolean(indexWriterProvider.getCommitData(COMMIT_DATA_UNIQUE_KEYS))) {
+            return 0;
+        }
+        IndexWriter indexWriter = indexWriterProvider.getIndexWriter();
+        Query legacyDocumentsQuery = new BooleanQuery.Builder()
+                .add(new MatchAllDocsQuery(), BooleanClause.Occur.MUST)
+                .add(createKeyExistsQuery(), BooleanClause.Occur.MUST_NOT)
+                .build();
+        try {
+            Map<String, List<FtsQueue>> itemsByEntity = new LinkedHashMap<>();
+            int count = 0;
+            try (DirectoryReader reader = DirectoryReader.open(indexWriter)) {
+                IndexSearcher searcher = new IndexSearcher(reader);
+                // documents that failed in the current run are skipped, they are found again until the queue indexes them
+                TopDocs topDocs = searcher.search(legacyDocumentsQuery, maxDocuments + failedDocuments.size());
+                if (topDocs.scoreDocs.length == 0) {
+                    indexWriterProvider.setCommitData(COMMIT_DATA_UNIQUE_KEYS, Boolean.TRUE.toString());
+                    indexWriter.commit();
+                    log.info("All documents of the FTS index contain the unique key field");
+                    return 0;
+                }
+                for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+                    Document doc = searcher.doc(scoreDoc.doc);
+                    String entityName = doc.get(FLD_ENTITY);
+                    String strEntityId = doc.get(FLD_ID);
+                    if (failedDocuments.contains(createDocumentKey(entityName, strEntityId))) {
+                        continue;
+                    }
+                    if (metadata.getSession().getClass(entityName) == null) {
+                        // the entity doesn't exist anymore, so the document can't be recreated
+                        deleteLegacyDocument(entityName, strEntityId, indexWriter);
+                        count++;
+                        continue;
+                    }
+                    FtsQueue item = metadata.create(FtsQueue.class);
+                    item.setEntityName(entityName);
+                    item.setObjectEntityId(luceneSearcher.parseIdFromString(strEntityId, entityName));
+                    item.setChangeType(FtsChangeType.UPDATE);
+                    itemsByEntity.computeIfAbsent(entityName, k -> new ArrayList<>()).add(item);
+                }
+            }
+            // the indexer replaces the legacy document with a keyed one, documents that failed are kept and queued
+            List<FtsQueue> failedItems = new ArrayList<>();
+            for (Map.Entry<String, List<FtsQueue>> entry : itemsByEntity.entrySet()) {
+                List<FtsQueue> notIndexed = luceneIndexer.indexEntities(entry.getKey(), entry.getValue(), indexWriter);
+                for (FtsQueue item : entry.getValue()) {
+                    if (notIndexed.contains(item)) {
+                        failedItems.add(item);
+                        failedDocuments.add(createDocumentKey(entry.getKey(), item.getObjectEntityId().toString()));
+                        count++;
+                    } else {
+                        // the instance is not found or is indexed already
+                        deleteLegacyDocument(entry.getKey(), item.getObjectEntityId().toString(), indexWriter);
+                        count++;
+                    }
+                }
+            }
+            if (!failedItems.isEmpty()) {
+                log.warn("{} documents are not reindexed with the unique key field and are added to the FTS queue",
+                        failedItems.size());
+                persistence.runInTransaction(em -> {
+                    for (FtsQueue item : failedItems) {
+                        ftsSender.enqueue(item.getEntityName(), item.getObjectEntityId(), FtsChangeType.UPDATE);
+                    }
+                });
+            }
+            indexWriter.commit();
+            indexSearcherProvider.getSearcherManager().maybeRefresh();
+            log.debug("{} documents reindexed with the unique key field, {} failed", count - failedItems.size(),
+                    failedItems.size());
+            return count;
+        } catch (IOException e) {
+            throw new RuntimeException("Error on unique keys backfill", e);
+        }
+    }
+
+    protected String createDocumentKey(String entityName, String strEntityId) {
+        return entityName + "-" + strEntityId;
+    }
+
+    /**
+     * Deletes the document of the instance only if it doesn't contain the {@link LuceneConstants#FLD_KEY} field.
+     */
+    protected void deleteLegacyDocument(String entityName, String strEntityId, IndexWriter indexWriter) throws IOException {
+        BooleanQuery.Builder documentQuery = new BooleanQuery.Builder();
+        documentQuery.add(new TermQuery(new Term(FLD_ID, strEntityId)), BooleanClause.Occur.MUST);
+        documentQuery.add(new TermQuery(new Term(FLD_ENTITY, entityName)), BooleanClause.Occur.MUST);
+        documentQuery.add(createKeyExistsQuery(), BooleanClause.Occur.MUST_NOT);
+        indexWriter.deleteDocuments(documentQuery.build());
+    }
+
+    protected Query createKeyExistsQuery() {
+        return TermRangeQuery.newStringRange(FLD_KEY, null, null, true, true);
+    }
 }
@@ -18,9 +18,14 @@ package com.haulmont.fts.core.sys;
 
 import com.haulmont.cuba.core.entity.Entity;
 import com.haulmont.cuba.core.entity.FtsChangeType;
+import com.haulmont.cuba.core.entity.FtsQueue;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.IndexWriter;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
 /**
  * INTERNAL
  * <p>
@@ -32,8 +37,38 @@ public interface LuceneIndexer {
 
     void indexEntity(String entityName, Object entityId, FtsChangeType changeType, IndexWriter writer) throws IndexingException;
 
+    /**
+     * Indexes a batch of queued changes of instances of the given entity. All instances are loaded in a single
+     * read-only transaction by one query per chunk of ids. Changes are applied to the index in the order of the
+     * {@code items} list.
+     *
+     * @return queued items that were not indexed and must be kept in the queue
+     */
+    default List<FtsQueue> indexEntities(String entityName, List<FtsQueue> items, IndexWriter writer) {
+        return indexEntities(entityName, items, writer, new ArrayList<>());
+    }
+
+    /**
+     * Same as {@link #indexEntities(String, List, IndexWriter)}.
+     *
+     * @param postponed collects items that were not indexed because of a lack of resources rather than a failure of
+     *                  the instance, see {@link IndexingPostponedException}
+     */
+    List<FtsQueue> indexEntities(String entityName, List<FtsQueue> items, IndexWriter writer,
+                                 Collection<FtsQueue> postponed);
+
+    /**
+     * @return average time and memory taken by {@link #indexEntities} per instance of each entity
+     */
+    IndexingCostStats getCostStats();
+
     void addListener(DocumentCreatedListener documentCreatedListener);
 
+    /**
+     * @return {@link IndexWriter} sequence number of the latest index modification made by the indexer
+     */
+    long getLastSequenceNumber();
+
     void deleteAllDocuments();
 
     void deleteDocumentsForEntity(String entityName);
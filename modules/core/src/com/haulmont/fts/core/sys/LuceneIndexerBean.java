@@ -16,19 +16,23 @@
 package com.haulmont.fts.core.sys;
 
 import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.haulmont.chile.core.model.MetaClass;
 import com.haulmont.chile.core.model.utils.InstanceUtils;
 import com.haulmont.cuba.core.EntityManager;
 import com.haulmont.cuba.core.Persistence;
+import com.haulmont.cuba.core.Query;
 import com.haulmont.cuba.core.Transaction;
 import com.haulmont.cuba.core.TransactionParams;
 import com.haulmont.cuba.core.app.FileStorageAPI;
 import com.haulmont.cuba.core.entity.Entity;
 import com.haulmont.cuba.core.entity.FileDescriptor;
 import com.haulmont.cuba.core.entity.FtsChangeType;
+import com.haulmont.cuba.core.entity.FtsQueue;
 import com.haulmont.cuba.core.entity.HasUuid;
-import com.haulmont.cuba.core.global.AppBeans;
+import com.haulmont.cuba.core.entity.IdProxy;
 import com.haulmont.cuba.core.global.FileStorageException;
+import com.haulmont.cuba.core.global.View;
 import com.haulmont.fts.global.EntityInfo;
 import com.haulmont.fts.global.FTS;
 import com.haulmont.fts.global.FtsConfig;
@@ -40,6 +44,7 @@ import org.apache.lucene.document.Field;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
@@ -54,19 +59,27 @@ import org.apache.tika.parser.odf.OpenDocumentParser;
 import org.apache.tika.parser.pdf.PDFParser;
 import org.apache.tika.parser.rtf.RTFParser;
 import org.apache.tika.parser.txt.TXTParser;
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.fork.ForkParser;
 import org.apache.tika.sax.BodyContentHandler;
+import org.apache.tika.sax.WriteOutContentHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
+import org.xml.sax.SAXException;
 
+import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringWriter;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
+import java.io.Writer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.haulmont.fts.core.sys.LuceneConstants.*;
 
@@ -75,6 +88,8 @@ public class LuceneIndexerBean implements LuceneIndexer {
 
     private static final Logger log = LoggerFactory.getLogger(LuceneIndexerBean.class);
 
+    protected static final int LOADING_SIZE = 500;
+
     private ValueFormatter valueFormatter = new ValueFormatter();
 
     @Inject
@@ -88,6 +103,10 @@ public class LuceneIndexerBean implements LuceneIndexer {
 
     protected List<DocumentCreatedListener> documentCreatedListeners = new ArrayList<>();
 
+    protected final AtomicLong lastSequenceNumber = new AtomicLong();
+
+    protected volatile IndexWriter sequenceNumberWriter;
+
     @Inject
     protected IndexWriterProvider indexWriterProvider;
 
@@ -97,15 +116,29 @@ public class LuceneIndexerBean implements LuceneIndexer {
     @Inject
     protected IndexSearcherProvider indexSearcherProvider;
 
+    @Inject
+    protected FileStorageAPI fileStorage;
+
+    @Inject
+    protected FileContentCache fileContentCache;
+
+    protected volatile ThreadPoolExecutor fileParsingExecutor;
+
+    protected final Map<Class<?>, ForkParser> forkParsers = new ConcurrentHashMap<>();
+
+    protected final IndexingCostStats costStats = new IndexingCostStats();
+
+    /**
+     * Number of file parsing threads occupied by parsers that didn't complete in time
+     */
+    protected final AtomicInteger hungParsingThreads = new AtomicInteger();
+
+    protected static final int MAX_HUNG_PARSING_THREADS = 10;
+
     @Override
     public void indexEntity(String entityName, Object entityId, FtsChangeType changeType, IndexWriter writer) throws IndexingException {
         if (FtsChangeType.DELETE.equals(changeType)) {
-            try {
-                deleteDocument(entityName, entityId, writer);
-            } catch (IOException e) {
-                log.error("Error deleting {}-{}", entityName, entityId);
-                throw new RuntimeException("Error on deleting a document from the Lucene index", e);
-            }
+            deleteEntityDocument(entityName, entityId, writer);
             return;
         }
         try {
@@ -116,16 +149,23 @@ public class LuceneIndexerBean implements LuceneIndexer {
             }
 
             Document doc;
+            IndexingException fileException = null;
             MetaClass metaClass = metadata.getSession().getClassNN(entityName);
             String storeName = metadata.getTools().getStoreName(metaClass);
             try (Transaction tx = persistence.createTransaction(storeName, new TransactionParams().setReadOnly(true))) {
                 EntityManager em = persistence.getEntityManager(storeName);
                 Entity entity;
 
-                if (metadata.getTools().hasCompositePrimaryKey(metaClass) && HasUuid.class.isAssignableFrom(metaClass.getJavaClass())) {
-                    entity = (Entity) em.createQuery("select e from " + metaClass.getName() + " e where e.uuid = :uuid")
-                            .setParameter("uuid", entityId)
-                            .getFirstResult();
+                View view = entityDescr.getView();
+                if (isQueuedByUuid(metaClass)) {
+                    Query query = em.createQuery("select e from " + metaClass.getName() + " e where e.uuid = :uuid")
+                            .setParameter("uuid", entityId);
+                    if (view != null) {
+                        query.setView(view);
+                    }
+                    entity = (Entity) query.getFirstResult();
+                } else if (view != null) {
+                    entity = em.find(metaClass.getJavaClass(), entityId, view);
                 } else {
                     entity = em.find(metaClass.getJavaClass(), entityId);
                 }
@@ -134,50 +174,23 @@ public class LuceneIndexerBean implements LuceneIndexer {
                     return;
                 }
 
-                Field idField = new StringField(FLD_ID, entityId.toString(), Field.Store.YES);
-
-                Field entityField = new StringField(FLD_ENTITY, entityName, Field.Store.YES);
-
-                String allContent = createAllFieldContent(entity, entityDescr);
-
-                Field allField = new TextField(
-                        FLD_ALL,
-                        allContent,
-                        ftsConfig.getStoreContentInIndex() ? Field.Store.YES : Field.Store.NO
-                );
-
-                Field morphologyAllField = new TextField(
-                        FLD_MORPHOLOGY_ALL,
-                        allContent,
-                        Field.Store.NO
-                );
-
-                Field linksField = new TextField(
-                        FLD_LINKS,
-                        createLinksFieldContent(entity, entityDescr),
-                        Field.Store.YES
-                );
-
-                doc = new Document();
-                doc.add(idField);
-                doc.add(entityField);
-                doc.add(allField);
-                doc.add(linksField);
-                doc.add(morphologyAllField);
-                documentCreated(doc, entity, entityDescr);
+                try {
+                    doc = createDocument(entityName, entityId, entity, entityDescr, true);
+                } catch (IndexingException e) {
+                    if (e.getEntityType() != IndexingException.EntityType.FILE) {
+                        throw e;
+                    }
+                    fileException = e;
+                    doc = createDocument(entityName, entityId, entity, entityDescr, false);
+                }
 
                 tx.commit();
             }
 
-            if (FtsChangeType.UPDATE.equals(changeType)) {
-                log.debug("Updating document {}-{}", entityName, entityId);
-                deleteDocument(entityName, entityId, writer);
-                writer.addDocument(doc);
-            } else {
-                log.debug("Adding document {}-{}", entityName, entityId);
-                writer.addDocument(doc);
+            writeDocument(entityName, entityId, changeType, doc, writer);
+            if (fileException != null) {
+                throw fileException;
             }
-
         } catch (IndexingException e) {
             log.error("Error indexing {}-{}", entityName, entityId);
             throw new IndexingException(entityName, entityId, e.getEntityType(), e);
@@ -190,7 +203,254 @@ public class LuceneIndexerBean implements LuceneIndexer {
         }
     }
 
+    @Override
+    public List<FtsQueue> indexEntities(String entityName, List<FtsQueue> items, IndexWriter writer,
+                                        Collection<FtsQueue> postponed) {
+        long start = System.nanoTime();
+        List<FtsQueue> notIndexed = new ArrayList<>();
+        EntityDescr entityDescr = entityDescrsManager.getDescrByEntityName(entityName);
+
+        Set<Object> ids = new LinkedHashSet<>();
+        for (FtsQueue item : items) {
+            if (!FtsChangeType.DELETE.equals(item.getChangeType())) {
+                ids.add(item.getObjectEntityId());
+            }
+        }
+        if (entityDescr == null && !ids.isEmpty()) {
+            log.error("No description for entity {}", entityName);
+            ids.clear();
+        }
+
+        // documents are created inside the transaction as creation can require lazy loading of linked entities
+        Map<FtsQueue, Document> documents = new HashMap<>();
+        Set<FtsQueue> notFound = new HashSet<>();
+        if (!ids.isEmpty()) {
+            MetaClass metaClass = metadata.getSession().getClassNN(entityName);
+            String storeName = metadata.getTools().getStoreName(metaClass);
+            try (Transaction tx = persistence.createTransaction(storeName, new TransactionParams().setReadOnly(true))) {
+                Map<Object, Entity> instances = loadEntities(metaClass, entityDescr.getView(), new ArrayList<>(ids),
+                        persistence.getEntityManager(storeName));
+                for (FtsQueue item : items) {
+                    if (FtsChangeType.DELETE.equals(item.getChangeType())) {
+                        continue;
+                    }
+                    Object entityId = item.getObjectEntityId();
+                    Entity entity = instances.get(entityId);
+                    if (entity == null) {
+                        // e.g. a reindex item superseded the DELETE of the instance, so the document is deleted
+                        log.info("Entity instance not found (could be deleted): {}-{}", entityName, entityId);
+                        notFound.add(item);
+                        continue;
+                    }
+                    try {
+                        documents.put(item, createDocument(entityName, entityId, entity, entityDescr, true));
+                    } catch (IndexingPostponedException e) {
+                        log.warn("Indexing of {}-{} is postponed: {}", entityName, entityId, e.getMessage());
+                        notIndexed.add(item);
+                        postponed.add(item);
+                    } catch (IndexingException e) {
+                        log.error("Error indexing {}-{}", entityName, entityId, e);
+                        if (e.getEntityType() != IndexingException.EntityType.FILE) {
+                            notIndexed.add(item);
+                            continue;
+                        }
+                        // the file can't be parsed, so only its attributes are indexed
+                        try {
+                            documents.put(item, createDocument(entityName, entityId, entity, entityDescr, false));
+                        } catch (IndexingException e1) {
+                            log.error("Error indexing {}-{}", entityName, entityId, e1);
+                            notIndexed.add(item);
+                        }
+                    }
+                }
+                tx.commit();
+            }
+        }
+
+        for (FtsQueue item : items) {
+            Object entityId = item.getObjectEntityId();
+            if (FtsChangeType.DELETE.equals(item.getChangeType()) || notFound.contains(item)) {
+                deleteEntityDocument(entityName, entityId, writer);
+                continue;
+            }
+            Document doc = documents.get(item);
+            if (doc == null) {
+                continue;
+            }
+            try {
+                writeDocument(entityName, entityId, item.getChangeType(), doc, writer);
+            } catch (IOException e) {
+                log.error("Error indexing {}-{}", entityName, entityId, e);
+                notIndexed.add(item);
+            }
+        }
+        costStats.record(entityName, items.size(), System.nanoTime() - start, estimateSize(documents.values()));
+        return notIndexed;
+    }
+
+    /**
+     * @return approximate size in bytes of the text of the documents
+     */
+    protected long estimateSize(Collection<Document> documents) {
+        long size = 0;
+        for (Document document : documents) {
+            for (IndexableField field : document.getFields()) {
+                String value = field.stringValue();
+                if (value != null) {
+                    size += value.length() * 2L;
+                }
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public IndexingCostStats getCostStats() {
+        return costStats;
+    }
+
+    /**
+     * Loads instances with the given ids using one query per {@link #LOADING_SIZE} ids. If the view is passed, the
+     * properties used for indexing are fetched by the same queries.
+     *
+     * @return instances mapped by the id that is used in the FTS queue
+     */
+    protected Map<Object, Entity> loadEntities(MetaClass metaClass, @Nullable View view, List<Object> ids, EntityManager em) {
+        String idProperty = isQueuedByUuid(metaClass) ?
+                "uuid" : metadata.getTools().getPrimaryKeyName(metaClass);
+        String queryString = String.format("select e from %s e where e.%s in :ids", metaClass.getName(), idProperty);
+        Map<Object, Entity> result = new HashMap<>(ids.size());
+        for (int i = 0; i < ids.size(); i += LOADING_SIZE) {
+            List<Object> chunk = ids.subList(i, Math.min(i + LOADING_SIZE, ids.size()));
+            Query query = em.createQuery(queryString)
+                    .setParameter("ids", chunk);
+            if (view != null) {
+                query.setView(view);
+            }
+            List<?> loaded = query.getResultList();
+            for (Object obj : loaded) {
+                Entity entity = (Entity) obj;
+                Object id = entity.getValue(idProperty);
+                if (id instanceof IdProxy) {
+                    id = ((IdProxy) id).getNN();
+                }
+                result.put(id, entity);
+            }
+        }
+        return result;
+    }
+
+    protected boolean isQueuedByUuid(MetaClass metaClass) {
+        return metadata.getTools().hasCompositePrimaryKey(metaClass) && HasUuid.class.isAssignableFrom(metaClass.getJavaClass());
+    }
+
+    protected Document createDocument(String entityName, Object entityId, Entity entity, EntityDescr entityDescr) throws IndexingException {
+        return createDocument(entityName, entityId, entity, entityDescr, true);
+    }
+
+    /**
+     * @param withFileContent whether the content of a {@link FileDescriptor} is indexed. If false, only the file
+     *                        attributes are indexed.
+     */
+    protected Document createDocument(String entityName, Object entityId, Entity entity, EntityDescr entityDescr,
+                                      boolean withFileContent) throws IndexingException {
+        Field idField = new StringField(FLD_ID, entityId.toString(), Field.Store.YES);
+
+        Field entityField = new StringField(FLD_ENTITY, entityName, Field.Store.YES);
+
+        Field keyField = new StringField(FLD_KEY, createDocumentKey(entityName, entityId), Field.Store.NO);
+
+        String allContent = createAllFieldContent(entity, entityDescr, withFileContent);
+
+        Field allField = new TextField(
+                FLD_ALL,
+                allContent,
+                ftsConfig.getStoreContentInIndex() ? Field.Store.YES : Field.Store.NO
+        );
+
+        Field morphologyAllField = new TextField(
+                FLD_MORPHOLOGY_ALL,
+                allContent,
+                Field.Store.NO
+        );
+
+        Field linksField = new TextField(
+                FLD_LINKS,
+                createLinksFieldContent(entity, entityDescr),
+                Field.Store.YES
+        );
+
+        Document doc = new Document();
+        doc.add(idField);
+        doc.add(entityField);
+        doc.add(keyField);
+        doc.add(allField);
+        doc.add(linksField);
+        doc.add(morphologyAllField);
+        documentCreated(doc, entity, entityDescr);
+        return doc;
+    }
+
+    /**
+     * Adds or replaces the document of the instance. {@link IndexWriter#updateDocument(Term, Iterable)} is used for
+     * all change types, so the instance can't get several documents even if it was queued for insertion twice, e.g.
+     * by a reindex that runs concurrently with user changes.
+     */
+    protected void writeDocument(String entityName, Object entityId, FtsChangeType changeType, Document doc,
+                                 IndexWriter writer) throws IOException {
+        log.debug("{} document {}-{}", FtsChangeType.UPDATE.equals(changeType) ? "Updating" : "Adding", entityName, entityId);
+        if (!isUniqueKeysIndex()) {
+            deleteLegacyDocument(entityName, entityId, writer);
+        }
+        trackSequenceNumber(writer, writer.updateDocument(new Term(FLD_KEY, createDocumentKey(entityName, entityId)), doc));
+    }
+
+    protected void deleteEntityDocument(String entityName, Object entityId, IndexWriter writer) {
+        try {
+            deleteDocument(entityName, entityId, writer);
+        } catch (IOException e) {
+            log.error("Error deleting {}-{}", entityName, entityId);
+            throw new RuntimeException("Error on deleting a document from the Lucene index", e);
+        }
+    }
+
     protected void deleteDocument(String entityName, Object entityId, IndexWriter writer) throws IOException {
+        if (!isUniqueKeysIndex()) {
+            deleteLegacyDocument(entityName, entityId, writer);
+        }
+        trackSequenceNumber(writer, writer.deleteDocuments(new Term(FLD_KEY, createDocumentKey(entityName, entityId))));
+    }
+
+    /**
+     * Remembers the sequence number of a modification made by the application writer. Sequence numbers start over
+     * when the writer is reopened, and modifications of other writers, e.g. of a shadow index, are not tracked.
+     */
+    protected void trackSequenceNumber(IndexWriter writer, long sequenceNumber) {
+        if (writer != indexWriterProvider.getIndexWriter()) {
+            return;
+        }
+        if (sequenceNumberWriter != writer) {
+            synchronized (lastSequenceNumber) {
+                if (sequenceNumberWriter != writer) {
+                    lastSequenceNumber.set(0);
+                    sequenceNumberWriter = writer;
+                }
+            }
+        }
+        lastSequenceNumber.accumulateAndGet(sequenceNumber, Math::max);
+    }
+
+    @Override
+    public long getLastSequenceNumber() {
+        // the writer is not obtained from the provider, as that would open it again while the index is being swapped
+        IndexWriter writer = sequenceNumberWriter;
+        return writer != null && writer.isOpen() ? lastSequenceNumber.get() : 0;
+    }
+
+    /**
+     * Deletes a document that could be created before the {@link LuceneConstants#FLD_KEY} field was introduced.
+     */
+    protected void deleteLegacyDocument(String entityName, Object entityId, IndexWriter writer) throws IOException {
         BooleanQuery.Builder queryBuilder = new BooleanQuery.Builder();
         Term entityNameTerm = new Term(FLD_ENTITY, entityName);
         Term idTerm = new Term(FLD_ID, entityId.toString());
@@ -199,6 +459,17 @@ public class LuceneIndexerBean implements LuceneIndexer {
         writer.deleteDocuments(queryBuilder.build());
     }
 
+    /**
+     * @return true if all documents of the index contain the {@link LuceneConstants#FLD_KEY} field
+     */
+    protected boolean isUniqueKeysIndex() {
+        return Boolean.parseBoolean(indexWriterProvider.getCommitData(COMMIT_DATA_UNIQUE_KEYS));
+    }
+
+    protected String createDocumentKey(String entityName, Object entityId) {
+        return new EntityInfo(entityName, entityId).toString();
+    }
+
     /**
      * Example of the "all" field content:
      * <ul>
@@ -206,6 +477,10 @@ public class LuceneIndexerBean implements LuceneIndexer {
      * </ul>
      */
     protected String createAllFieldContent(Entity entity, EntityDescr descr) throws IndexingException {
+        return createAllFieldContent(entity, descr, true);
+    }
+
+    protected String createAllFieldContent(Entity entity, EntityDescr descr, boolean withFileContent) throws IndexingException {
         StringBuilder sb = new StringBuilder();
 
         for (String propName : descr.getLocalProperties()) {
@@ -222,7 +497,9 @@ public class LuceneIndexerBean implements LuceneIndexer {
         if (entity instanceof FileDescriptor && ftsConfig.getFileContentIndexingEnabled()) {
             appendString(sb, makeFieldName(FTS.FILE_CONT_PROP));
             sb.append(FTS.FIELD_SEP).append(((FileDescriptor) entity).getName().replaceAll("\\s+", FTS.FIELD_SEP));
-            appendFileContent(sb, (FileDescriptor) entity);
+            if (withFileContent) {
+                appendFileContent(sb, (FileDescriptor) entity);
+            }
         }
 
         if (log.isTraceEnabled())
@@ -234,35 +511,188 @@ public class LuceneIndexerBean implements LuceneIndexer {
     protected void appendFileContent(StringBuilder sb, FileDescriptor fileDescriptor) throws IndexingException {
         Parser parser = getParser(fileDescriptor);
         if (parser == null) return;
-        FileStorageAPI fs = AppBeans.get(FileStorageAPI.class);
-        byte[] data;
-        try {
-            data = fs.loadFile(fileDescriptor);
-        } catch (FileStorageException e) {
-            throw new IndexingException(IndexingException.EntityType.FILE, e);
+
+        String content = fileContentCache.get(fileDescriptor);
+        if (content != null) {
+            appendString(sb, content);
+            return;
         }
-        InputStream stream = new ByteArrayInputStream(data);
 
-        StringWriter stringWriter = new StringWriter();
         try {
-            parser.parse(stream, new BodyContentHandler(stringWriter), new Metadata(), new ParseContext());
+            content = extractFileContent(parser, fileDescriptor);
         } catch (OfficeXmlFileException e) {
             if (parser instanceof OfficeParser) {
-                parser = new OOXMLParser();
                 try {
-                    stream = new ByteArrayInputStream(data);
-                    stringWriter = new StringWriter();
-                    parser.parse(stream, new BodyContentHandler(stringWriter), new Metadata(), new ParseContext());
+                    content = extractFileContent(new OOXMLParser(), fileDescriptor);
+                } catch (IndexingException e1) {
+                    throw e1;
                 } catch (Exception e1) {
                     throw new IndexingException(IndexingException.EntityType.FILE, e);
                 }
             } else {
                 throw new IndexingException(IndexingException.EntityType.FILE, e);
             }
+        } catch (IndexingException e) {
+            throw e;
         } catch (Exception e) {
             throw new IndexingException(IndexingException.EntityType.FILE, e);
         }
-        appendString(sb, stringWriter.toString());
+        fileContentCache.put(fileDescriptor, content);
+        appendString(sb, content);
+    }
+
+    /**
+     * Extracts the text of the file in the file parsing executor, see {@link FtsConfig#getFileParsingTimeout()}.
+     *
+     * @throws IndexingException of the {@link IndexingException.EntityType#FILE} type if the file is too large or
+     *                           the parsing is not completed in time
+     */
+    protected String extractFileContent(Parser parser, FileDescriptor fileDescriptor) throws Exception {
+        long maxSize = ftsConfig.getFileMaxSize() * 1024L * 1024L;
+        if (maxSize > 0 && fileDescriptor.getSize() != null && fileDescriptor.getSize() > maxSize) {
+            throw new IndexingException(null, null, String.format("Size of the file %s exceeds %d MB",
+                    fileDescriptor.getId(), ftsConfig.getFileMaxSize()), IndexingException.EntityType.FILE, null);
+        }
+
+        Parser actualParser = ftsConfig.getFileParsingForked() ? getForkParser(parser) : parser;
+        // 0 - not completed, 1 - completed, 2 - abandoned after the timeout
+        AtomicInteger state = new AtomicInteger();
+        AtomicBoolean started = new AtomicBoolean();
+        Future<String> future;
+        try {
+            future = getFileParsingExecutor().submit(() -> {
+                started.set(true);
+                try {
+                    StringWriter writer = new StringWriter();
+                    parseFileContent(actualParser, fileDescriptor, writer);
+                    return writer.toString();
+                } finally {
+                    if (!state.compareAndSet(0, 1)) {
+                        releaseHungParsingThread();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            throw new IndexingPostponedException("No free threads to parse the file " + fileDescriptor.getId(), e);
+        }
+        int timeout = ftsConfig.getFileParsingTimeout();
+        try {
+            return timeout > 0 ? future.get(timeout, TimeUnit.MILLISECONDS) : future.get();
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            if (!started.get()) {
+                // all parsing threads are busy with other files, the instance will be indexed later
+                throw new IndexingPostponedException("No free threads to parse the file " + fileDescriptor.getId(), e);
+            }
+            if (state.compareAndSet(0, 2)) {
+                // parsers usually ignore the interruption, so the thread is replaced by a new one
+                addHungParsingThread();
+            }
+            throw new IndexingException(null, null, String.format("Parsing of the file %s takes more than %d ms",
+                    fileDescriptor.getId(), timeout), IndexingException.EntityType.FILE, e);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IndexingException(IndexingException.EntityType.OTHER, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw new IndexingException(IndexingException.EntityType.FILE, cause);
+        }
+    }
+
+    /**
+     * Returns the executor parsing files. Its queue is bounded, so tasks are rejected instead of waiting for threads
+     * that can be occupied by hung parsers.
+     */
+    protected ThreadPoolExecutor getFileParsingExecutor() {
+        if (fileParsingExecutor == null) {
+            synchronized (this) {
+                if (fileParsingExecutor == null) {
+                    int threads = Math.max(ftsConfig.getFileParsingThreads(), 1);
+                    int queueSize = Math.max(threads, ftsConfig.getIndexingThreads()) * 2;
+                    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                            new ArrayBlockingQueue<>(queueSize),
+                            new ThreadFactoryBuilder().setNameFormat("fts-file-parsing-%d").setDaemon(true).build());
+                    executor.allowCoreThreadTimeOut(true);
+                    fileParsingExecutor = executor;
+                }
+            }
+        }
+        return fileParsingExecutor;
+    }
+
+    /**
+     * Adds a thread to the file parsing executor in place of the one occupied by a parser that didn't complete in
+     * time. The thread is removed when the parser completes.
+     */
+    protected void addHungParsingThread() {
+        int hung = hungParsingThreads.incrementAndGet();
+        if (hung > MAX_HUNG_PARSING_THREADS) {
+            log.warn("{} file parsing threads are hung, no more threads are added. Consider parsing files in " +
+                    "separate processes, see fts.fileParsingForked", hung);
+        }
+        resizeFileParsingExecutor();
+    }
+
+    protected void releaseHungParsingThread() {
+        hungParsingThreads.decrementAndGet();
+        resizeFileParsingExecutor();
+    }
+
+    protected synchronized void resizeFileParsingExecutor() {
+        ThreadPoolExecutor executor = getFileParsingExecutor();
+        int size = Math.max(ftsConfig.getFileParsingThreads(), 1)
+                + Math.min(Math.max(hungParsingThreads.get(), 0), MAX_HUNG_PARSING_THREADS);
+        if (size > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(size);
+            executor.setCorePoolSize(size);
+        } else if (size < executor.getMaximumPoolSize()) {
+            executor.setCorePoolSize(size);
+            executor.setMaximumPoolSize(size);
+        }
+    }
+
+    /**
+     * Returns the parser that runs the given one in a separate JVM, see {@link FtsConfig#getFileParsingForkJavaCommand()}.
+     */
+    protected Parser getForkParser(Parser parser) {
+        return forkParsers.computeIfAbsent(parser.getClass(), parserClass -> {
+            ForkParser forkParser = new ForkParser(LuceneIndexerBean.class.getClassLoader(), parser);
+            forkParser.setJavaCommand(Arrays.asList(ftsConfig.getFileParsingForkJavaCommand().trim().split("\\s+")));
+            forkParser.setPoolSize(Math.max(ftsConfig.getFileParsingThreads(), 1));
+            return forkParser;
+        });
+    }
+
+    @PreDestroy
+    protected void shutdownFileParsing() {
+        if (fileParsingExecutor != null) {
+            fileParsingExecutor.shutdownNow();
+        }
+        forkParsers.values().forEach(ForkParser::close);
+        forkParsers.clear();
+    }
+
+    /**
+     * Parses the file reading it from the file storage as a stream. The extracted text is limited by
+     * {@link FtsConfig#getFileContentMaxLength()}, the rest of the file is skipped.
+     */
+    protected void parseFileContent(Parser parser, FileDescriptor fileDescriptor, Writer writer)
+            throws FileStorageException, IOException, SAXException, TikaException {
+        int maxLength = ftsConfig.getFileContentMaxLength();
+        WriteOutContentHandler handler = new WriteOutContentHandler(writer, maxLength > 0 ? maxLength : -1);
+        try (InputStream stream = fileStorage.openStream(fileDescriptor)) {
+            parser.parse(stream, new BodyContentHandler(handler), new Metadata(), new ParseContext());
+        } catch (SAXException | TikaException e) {
+            // a forked parser reports the write limit wrapped into TikaException
+            if (!handler.isWriteLimitReached(e)) {
+                throw e;
+            }
+            log.debug("Content of the file {} is truncated to {} characters", fileDescriptor.getId(), maxLength);
+        }
     }
 
     protected Parser getParser(FileDescriptor fileDescriptor) {
@@ -377,6 +807,7 @@ public class LuceneIndexerBean implements LuceneIndexer {
         try {
             IndexWriter writer = indexWriterProvider.getIndexWriter();
             writer.deleteAll();
+            indexWriterProvider.setCommitData(COMMIT_DATA_UNIQUE_KEYS, Boolean.TRUE.toString());
             writer.commit();
             indexSearcherProvider.getSearcherManager().maybeRefresh();
         } catch (IOException e) {
@@ -44,4 +44,9 @@ public interface LuceneSearcher {
     List<EntityInfo> searchLinksField(Object id, int firstResult, int maxResults);
 
     List<EntityInfo> searchLinksField(Object id, List<String> entityNames);
+
+    /**
+     * Converts an id stored in the {@link LuceneConstants#FLD_ID} field to the type of the entity primary key
+     */
+    Object parseIdFromString(String strId, String entityName);
 }
@@ -43,9 +43,12 @@ public class LuceneSearcherBean implements LuceneSearcher {
     @Inject
     protected IndexSearcherProvider indexSearcherProvider;
 
+    @Inject
+    protected IndexWriterProvider indexWriterProvider;
+
     @Override
     public List<EntityInfo> searchAllField(String searchTerm, int firstResult, int maxResults) {
-        Set<EntityInfo> set = new LinkedHashSet<>();
+        Collection<EntityInfo> result = createResultCollection();
         Query query = createQueryForAllFieldSearch(searchTerm);
         IndexSearcher searcher = null;
         try {
@@ -58,7 +61,7 @@ public class LuceneSearcherBean implements LuceneSearcher {
                 String entityName = doc.getField(FLD_ENTITY).stringValue();
                 String strEntityId = doc.getField(FLD_ID).stringValue();
                 EntityInfo entityInfo = new EntityInfo(entityName, parseIdFromString(strEntityId, entityName));
-                set.add(entityInfo);
+                result.add(entityInfo);
             }
         } catch (IOException e) {
             throw new RuntimeException("Search error", e);
@@ -66,12 +69,12 @@ public class LuceneSearcherBean implements LuceneSearcher {
             if (searcher != null)
                 indexSearcherProvider.releaseIndexSearcher(searcher);
         }
-        return new ArrayList<>(set);
+        return toResultList(result);
     }
 
     @Override
     public List<EntityInfo> searchAllField(String searchTerm, Collection<String> entityNames) {
-        Set<EntityInfo> set = new LinkedHashSet<>();
+        Collection<EntityInfo> result = createResultCollection();
         Query query = createQueryForAllFieldSearch(searchTerm, entityNames);
         IndexSearcher searcher = null;
         try {
@@ -83,7 +86,7 @@ public class LuceneSearcherBean implements LuceneSearcher {
                 String entityName = doc.getField(FLD_ENTITY).stringValue();
                 String strEntityId = doc.getField(FLD_ID).stringValue();
                 EntityInfo entityInfo = new EntityInfo(entityName, parseIdFromString(strEntityId, entityName));
-                set.add(entityInfo);
+                result.add(entityInfo);
             }
         } catch (IOException e) {
             throw new RuntimeException("Search error", e);
@@ -91,9 +94,21 @@ public class LuceneSearcherBean implements LuceneSearcher {
             if (searcher != null)
                 indexSearcherProvider.releaseIndexSearcher(searcher);
         }
-        return new ArrayList<>(set);
+        return toResultList(result);
+    }
+
+    /**
+     * Documents created before the unique key field was introduced can duplicate each other, so hits are deduplicated
+     * until all documents of the index are migrated.
+     */
+    protected Collection<EntityInfo> createResultCollection() {
+        boolean uniqueKeys = Boolean.parseBoolean(indexWriterProvider.getCommitData(COMMIT_DATA_UNIQUE_KEYS));
+        return uniqueKeys ? new ArrayList<>() : new LinkedHashSet<>();
     }
 
+    protected List<EntityInfo> toResultList(Collection<EntityInfo> result) {
+        return result instanceof List ? (List<EntityInfo>) result : new ArrayList<>(result);
+    }
 
     protected Query createQueryForAllFieldSearch(String searchTerm) {
         Query query;
@@ -176,7 +191,8 @@ public class LuceneSearcherBean implements LuceneSearcher {
         return query;
     }
 
-    protected Object parseIdFromString(String strId, String entityName) {
+    @Override
+    public Object parseIdFromString(String strId, String entityName) {
         Metadata metadata = AppBeans.get(Metadata.class);
         MetaClass metaClass = metadata.getSession().getClassNN(entityName);
         MetaProperty primaryKey = AppBeans.get(FtsManagerAPI.class).getPrimaryKeyPropertyForFts(metaClass);
@@ -202,7 +218,7 @@ public class LuceneSearcherBean implements LuceneSearcher {
 
     @Override
     public List<EntityInfo> searchLinksField(Object id, int firstResult, int maxResults) {
-        Set<EntityInfo> set = new LinkedHashSet<>();
+        Collection<EntityInfo> result = createResultCollection();
         Term term = new Term(FLD_LINKS, id.toString());
         Query termQuery = new TermQuery(term);
         IndexSearcher searcher = indexSearcherProvider.acquireIndexSearcher();
@@ -215,19 +231,19 @@ public class LuceneSearcherBean implements LuceneSearcher {
                 String entityName = doc.getField(FLD_ENTITY).stringValue();
                 String strEntityId = doc.getField(FLD_ID).stringValue();
                 EntityInfo entityInfo = new EntityInfo(entityName, parseIdFromString(strEntityId, entityName));
-                set.add(entityInfo);
+                result.add(entityInfo);
             }
         } catch (IOException e) {
             throw new RuntimeException("Search error", e);
         } finally {
             indexSearcherProvider.releaseIndexSearcher(searcher);
         }
-        return new ArrayList<>(set);
+        return toResultList(result);
     }
 
     @Override
     public List<EntityInfo> searchLinksField(Object id, List<String> entityNames) {
-        Set<EntityInfo> set = new LinkedHashSet<>();
+        Collection<EntityInfo> result = createResultCollection();
         Query query = createQueryForLinksFieldSearch(id, entityNames);
         IndexSearcher searcher = indexSearcherProvider.acquireIndexSearcher();
         try {
@@ -238,13 +254,13 @@ public class LuceneSearcherBean implements LuceneSearcher {
                 String entityName = doc.getField(FLD_ENTITY).stringValue();
                 String strEntityId = doc.getField(FLD_ID).stringValue();
                 EntityInfo entityInfo = new EntityInfo(entityName, parseIdFromString(strEntityId, entityName));
-                set.add(entityInfo);
+                result.add(entityInfo);
             }
         } catch (IOException e) {
             throw new RuntimeException("Search error", e);
         } finally {
             indexSearcherProvider.releaseIndexSearcher(searcher);
         }
-        return new ArrayList<>(set);
+        return toResultList(result);
     }
 }
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2008-2019 Haulmont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.haulmont.fts.core.sys;
+
+import com.haulmont.cuba.core.entity.FtsChangeType;
+import com.haulmont.cuba.core.entity.FtsQueue;
+
+import java.util.*;
+
+/**
+ * Collapses queued changes of the same entity instance into a single effective change. The last queued item of
+ * the instance becomes the effective one and its change type is replaced (in memory only) as follows:
+ * <ul>
+ *     <li>if the last change is DELETE, the effective change is DELETE</li>
+ *     <li>if all changes are INSERT, the effective change is INSERT</li>
+ *     <li>otherwise the effective change is UPDATE</li>
+ * </ul>
+ * A DELETE superseded by a later INSERT or UPDATE, e.g. by an item of a reindex, is not lost: the indexer deletes the
+ * document if the instance of an effective INSERT or UPDATE is not found.
+ * Items passed to the constructor must be ordered by their creation time.
+ */
+public class QueuedItemsCoalescer {
+
+    protected List<FtsQueue> effectiveItems;
+
+    protected Map<FtsQueue, List<FtsQueue>> supersededItems = new HashMap<>();
+
+    public QueuedItemsCoalescer(List<FtsQueue> items) {
+        Map<String, List<FtsQueue>> itemsByInstance = new LinkedHashMap<>();
+        for (FtsQueue item : items) {
+            itemsByInstance.computeIfAbsent(getInstanceKey(item), k -> new ArrayList<>()).add(item);
+        }
+
+        Set<FtsQueue> effective = new HashSet<>();
+        for (List<FtsQueue> instanceItems : itemsByInstance.values()) {
+            FtsQueue last = instanceItems.get(instanceItems.size() - 1);
+            if (instanceItems.size() > 1) {
+                last.setChangeType(getEffectiveChangeType(instanceItems));
+                supersededItems.put(last, new ArrayList<>(instanceItems.subList(0, instanceItems.size() - 1)));
+            }
+            effective.add(last);
+        }
+
+        // keep the queue order of the effective items
+        effectiveItems = new ArrayList<>(effective.size());
+        for (FtsQueue item : items) {
+            if (effective.contains(item)) {
+                effectiveItems.add(item);
+            }
+        }
+    }
+
+    /**
+     * @return a single item per entity instance, in the order of the queue
+     */
+    public List<FtsQueue> getEffectiveItems() {
+        return effectiveItems;
+    }
+
+    /**
+     * @return items of the same instance that were queued before the given effective item
+     */
+    public List<FtsQueue> getSupersededItems(FtsQueue effectiveItem) {
+        return supersededItems.getOrDefault(effectiveItem, Collections.emptyList());
+    }
+
+    /**
+     * @return the given effective items together with the items they supersede
+     */
+    public List<FtsQueue> withSupersededItems(Collection<FtsQueue> effectiveItems) {
+        List<FtsQueue> result = new ArrayList<>(effectiveItems);
+        for (FtsQueue item : effectiveItems) {
+            result.addAll(getSupersededItems(item));
+        }
+        return result;
+    }
+
+    protected FtsChangeType getEffectiveChangeType(List<FtsQueue> instanceItems) {
+        FtsChangeType lastChangeType = instanceItems.get(instanceItems.size() - 1).getChangeType();
+        if (FtsChangeType.DELETE.equals(lastChangeType)) {
+            return FtsChangeType.DELETE;
+        }
+        for (FtsQueue item : instanceItems) {
+            if (!FtsChangeType.INSERT.equals(item.getChangeType())) {
+                return FtsChangeType.UPDATE;
+            }
+        }
+        return FtsChangeType.INSERT;
+    }
+
+    protected String getInstanceKey(FtsQueue item) {
+        return item.getEntityName() + "-" + item.getObjectEntityId();
+    }
+}
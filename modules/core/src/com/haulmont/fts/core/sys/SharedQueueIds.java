@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2008-2019 Haulmont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.haulmont.fts.core.sys;
+
+import com.haulmont.cuba.core.entity.FtsChangeType;
+
+import java.util.UUID;
+
+/**
+ * Ids of the shared queue items. An item of the shared queue gets a number from the database sequence of its lane
+ * when it is inserted, the number is kept in the id, as the queue table has no column for it:
+ * <ul>
+ *     <li>the most significant bits are the number</li>
+ *     <li>the least significant bits are the lane in bits 48-63 and the lower 48 bits of the number</li>
+ * </ul>
+ * So the ids of a lane are ordered by their numbers both in the text form and in the binary form, including the
+ * SQL Server ordering of {@code uniqueidentifier}, which compares the last 6 bytes first.
+ */
+public final class SharedQueueIds {
+
+    /**
+     * Sequence of user changes ({@link FtsChangeType#UPDATE} and {@link FtsChangeType#DELETE})
+     */
+    public static final String INTERACTIVE_SEQUENCE = "fts_shared_queue";
+
+    /**
+     * Sequence of instances queued by reindex ({@link FtsChangeType#INSERT})
+     */
+    public static final String REINDEX_SEQUENCE = "fts_shared_queue_reindex";
+
+    protected static final long MAX_NUMBER = 0xFFFFFFFFFFFFL;
+
+    private SharedQueueIds() {
+    }
+
+    public static boolean isReindexLane(FtsChangeType changeType) {
+        return changeType == FtsChangeType.INSERT;
+    }
+
+    /**
+     * @return true if the id is an id of an item of the reindex lane
+     */
+    public static boolean isReindexLane(UUID id) {
+        return id.getLeastSignificantBits() >>> 48 == 1;
+    }
+
+    public static String getSequenceName(FtsChangeType changeType) {
+        return isReindexLane(changeType) ? REINDEX_SEQUENCE : INTERACTIVE_SEQUENCE;
+    }
+
+    public static UUID createId(long number, boolean reindexLane) {
+        if (number <= 0 || number > MAX_NUMBER) {
+            throw new IllegalArgumentException("Shared queue number is out of range: " + number);
+        }
+        return new UUID(number, (reindexLane ? 1L << 48 : 0) | number);
+    }
+
+    /**
+     * @return the number kept in the id or 0 if the id is not an id of the shared queue item, e.g. the item was
+     * queued before the shared queue was enabled
+     */
+    public static long getNumber(UUID id) {
+        long number = id.getMostSignificantBits();
+        long lane = id.getLeastSignificantBits() >>> 48;
+        if (number <= 0 || number > MAX_NUMBER || lane > 1 || (id.getLeastSignificantBits() & MAX_NUMBER) != number) {
+            return 0;
+        }
+        return number;
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2008-2019 Haulmont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.haulmont.fts.core.sys;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class IndexingCostStatsTest extends TestCase {
+
+    public void testMovingAverage() {
+        IndexingCostStats stats = new IndexingCostStats();
+        stats.record("test$Book", 10, 1000, 5000);
+        assertEquals(100.0, stats.getTime("test$Book"), 0.001);
+        assertEquals(500.0, stats.getSize("test$Book"), 0.001);
+
+        stats.record("test$Book", 1, 600, 1000);
+        assertEquals(200.0, stats.getTime("test$Book"), 0.001);
+        assertEquals(600.0, stats.getSize("test$Book"), 0.001);
+    }
+
+    public void testUnknownEntityUsesAverageOfKnownOnes() {
+        IndexingCostStats stats = new IndexingCostStats();
+        assertEquals(0.0, stats.getTime("test$Book"), 0.001);
+
+        stats.record("test$Book", 1, 100, 0);
+        stats.record("test$Attachment", 1, 300, 0);
+        assertEquals(200.0, stats.getTime("test$Review"), 0.001);
+    }
+
+    public void testCountWithinBudget() {
+        IndexingCostStats stats = new IndexingCostStats();
+        stats.record("test$Book", 1, 10, 100);
+        stats.record("test$Attachment", 1, 1000, 10000);
+
+        assertEquals(3, stats.countWithinBudget(Arrays.asList("test$Book", "test$Book", "test$Book"), 100, 0));
+        assertEquals(2, stats.countWithinBudget(
+                Arrays.asList("test$Book", "test$Attachment", "test$Book"), 1015, 0));
+        assertEquals(2, stats.countWithinBudget(
+                Arrays.asList("test$Book", "test$Book", "test$Attachment"), 0, 5000));
+        // a single item exceeding the budget is still processed
+        assertEquals(1, stats.countWithinBudget(Arrays.asList("test$Attachment", "test$Book"), 100, 0));
+        assertEquals(0, stats.countWithinBudget(Collections.emptyList(), 100, 100));
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2008-2019 Haulmont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.haulmont.fts.core.sys;
+
+import com.haulmont.cuba.core.entity.FtsChangeType;
+import com.haulmont.cuba.core.entity.FtsQueue;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+public class QueuedItemsCoalescerTest extends TestCase {
+
+    public void testSingleItemsAreNotChanged() {
+        FtsQueue first = createItem("test$Book", UUID.randomUUID(), FtsChangeType.INSERT);
+        FtsQueue second = createItem("test$Book", UUID.randomUUID(), FtsChangeType.UPDATE);
+
+        QueuedItemsCoalescer coalescer = new QueuedItemsCoalescer(Arrays.asList(first, second));
+
+        assertEquals(Arrays.asList(first, second), coalescer.getEffectiveItems());
+        assertEquals(FtsChangeType.INSERT, first.getChangeType());
+        assertEquals(FtsChangeType.UPDATE, second.getChangeType());
+        assertTrue(coalescer.getSupersededItems(first).isEmpty());
+    }
+
+    public void testLastChangeOfInstanceIsEffective() {
+        UUID id = UUID.randomUUID();
+        FtsQueue update1 = createItem("test$Book", id, FtsChangeType.UPDATE);
+        FtsQueue other = createItem("test$Book", UUID.randomUUID(), FtsChangeType.UPDATE);
+        FtsQueue update2 = createItem("test$Book", id, FtsChangeType.UPDATE);
+        FtsQueue delete = createItem("test$Book", id, FtsChangeType.DELETE);
+
+        QueuedItemsCoalescer coalescer = new QueuedItemsCoalescer(Arrays.asList(update1, other, update2, delete));
+
+        assertEquals(Arrays.asList(other, delete), coalescer.getEffectiveItems());
+        assertEquals(FtsChangeType.DELETE, delete.getChangeType());
+        assertEquals(Arrays.asList(update1, update2), coalescer.getSupersededItems(delete));
+
+        List<FtsQueue> processed = coalescer.withSupersededItems(Collections.singletonList(delete));
+        assertEquals(3, processed.size());
+        assertFalse(processed.contains(other));
+    }
+
+    public void testEffectiveChangeType() {
+        UUID insertedId = UUID.randomUUID();
+        UUID updatedId = UUID.randomUUID();
+        UUID recreatedId = UUID.randomUUID();
+        FtsQueue insert1 = createItem("test$Book", insertedId, FtsChangeType.INSERT);
+        FtsQueue insert2 = createItem("test$Book", insertedId, FtsChangeType.INSERT);
+        FtsQueue insert3 = createItem("test$Book", updatedId, FtsChangeType.INSERT);
+        FtsQueue update = createItem("test$Book", updatedId, FtsChangeType.UPDATE);
+        FtsQueue delete = createItem("test$Book", recreatedId, FtsChangeType.DELETE);
+        FtsQueue insert4 = createItem("test$Book", recreatedId, FtsChangeType.INSERT);
+
+        new QueuedItemsCoalescer(Arrays.asList(insert1, insert2, insert3, update, delete, insert4));
+
+        assertEquals(FtsChangeType.INSERT, insert2.getChangeType());
+        assertEquals(FtsChangeType.UPDATE, update.getChangeType());
+        assertEquals(FtsChangeType.UPDATE, insert4.getChangeType());
+    }
+
+    public void testDeleteSupersededByReindexInsert() {
+        UUID id = UUID.randomUUID();
+        FtsQueue delete = createItem("test$Book", id, FtsChangeType.DELETE);
+        FtsQueue reindexInsert = createItem("test$Book", id, FtsChangeType.INSERT);
+
+        QueuedItemsCoalescer coalescer = new QueuedItemsCoalescer(Arrays.asList(delete, reindexInsert));
+
+        // the instance is loaded when the effective item is indexed, the document is deleted if it is not found
+        assertEquals(Collections.singletonList(reindexInsert), coalescer.getEffectiveItems());
+        assertEquals(FtsChangeType.UPDATE, reindexInsert.getChangeType());
+        assertEquals(Collections.singletonList(delete), coalescer.getSupersededItems(reindexInsert));
+    }
+
+    public void testSameIdOfDifferentEntities() {
+        UUID id = UUID.randomUUID();
+        FtsQueue book = createItem("test$Book", id, FtsChangeType.UPDATE);
+        FtsQueue review = createItem("test$BookReview", id, FtsChangeType.UPDATE);
+
+        QueuedItemsCoalescer coalescer = new QueuedItemsCoalescer(Arrays.asList(book, review));
+
+        assertEquals(Arrays.asList(book, review), coalescer.getEffectiveItems());
+    }
+
+    private FtsQueue createItem(String entityName, Object entityId, FtsChangeType changeType) {
+        FtsQueue item = new FtsQueue();
+        item.setEntityName(entityName);
+        item.setObjectEntityId(entityId);
+        item.setChangeType(changeType);
+        return item;
+    }
+}
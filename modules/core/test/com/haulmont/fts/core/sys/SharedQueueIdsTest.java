@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2008-2019 Haulmont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.haulmont.fts.core.sys;
+
+import com.haulmont.cuba.core.entity.FtsChangeType;
+import junit.framework.TestCase;
+
+import java.util.UUID;
+
+public class SharedQueueIdsTest extends TestCase {
+
+    public void testNumberIsKeptInId() {
+        UUID interactiveId = SharedQueueIds.createId(42, false);
+        UUID reindexId = SharedQueueIds.createId(42, true);
+
+        assertEquals(42, SharedQueueIds.getNumber(interactiveId));
+        assertEquals(42, SharedQueueIds.getNumber(reindexId));
+        assertFalse(SharedQueueIds.isReindexLane(interactiveId));
+        assertTrue(SharedQueueIds.isReindexLane(reindexId));
+        assertFalse(interactiveId.equals(reindexId));
+    }
+
+    public void testIdsAreOrderedByNumber() {
+        UUID previous = SharedQueueIds.createId(1, false);
+        for (long number : new long[]{2, 15, 16, 255, 256, 65536, 1L << 32, (1L << 48) - 1}) {
+            UUID id = SharedQueueIds.createId(number, false);
+            assertTrue(previous.toString().compareTo(id.toString()) < 0);
+            assertTrue(previous.compareTo(id) < 0);
+            previous = id;
+        }
+    }
+
+    public void testRandomIdHasNoNumber() {
+        assertEquals(0, SharedQueueIds.getNumber(UUID.randomUUID()));
+        assertEquals(0, SharedQueueIds.getNumber(new UUID(0, 0)));
+    }
+
+    public void testLaneOfChangeType() {
+        assertEquals(SharedQueueIds.REINDEX_SEQUENCE, SharedQueueIds.getSequenceName(FtsChangeType.INSERT));
+        assertEquals(SharedQueueIds.INTERACTIVE_SEQUENCE, SharedQueueIds.getSequenceName(FtsChangeType.UPDATE));
+        assertEquals(SharedQueueIds.INTERACTIVE_SEQUENCE, SharedQueueIds.getSequenceName(FtsChangeType.DELETE));
+    }
+
+    public void testNumberOutOfRangeIsRejected() {
+        try {
+            SharedQueueIds.createId(0, false);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            SharedQueueIds.createId(1L << 48, false);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2008-2019 Haulmont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package spec
+
+import com.haulmont.bali.db.QueryRunner
+import com.haulmont.cuba.core.Persistence
+import com.haulmont.cuba.core.app.ConfigStorageAPI
+import com.haulmont.cuba.core.entity.FtsQueue
+import com.haulmont.cuba.core.global.AppBeans
+import com.haulmont.cuba.core.global.DataManager
+import com.haulmont.cuba.core.global.Metadata
+import com.haulmont.fts.FtsTestContainer
+import com.haulmont.fts.core.app.FtsManagerAPI
+import com.haulmont.fts.core.sys.LuceneIndexer
+import com.haulmont.fts.core.sys.LuceneSearcher
+import com.haulmont.fts.testmodel.searchresult.MainEntity
+import org.apache.lucene.index.IndexWriter
+import org.junit.ClassRule
+import org.springframework.aop.framework.Advised
+import spock.lang.Shared
+import spock.lang.Specification
+
+class DeadLetterQueueTest extends Specification {
+
+    @Shared
+    @ClassRule
+    public FtsTestContainer cont = FtsTestContainer.Common.INSTANCE
+
+    private Persistence persistence
+    private Metadata metadata
+    private FtsManagerAPI ftsManager
+    private Object ftsManagerTarget
+    private DataManager dataManager
+    private ConfigStorageAPI configStorage
+    private LuceneSearcher luceneSearcher
+    private LuceneIndexer luceneIndexer
+    private FailingLuceneIndexer failingIndexer
+
+    void setup() {
+        persistence = cont.persistence()
+        metadata = cont.metadata()
+        ftsManager = AppBeans.get(FtsManagerAPI)
+        ftsManagerTarget = ftsManager instanceof Advised ? ((Advised) ftsManager).targetSource.target : ftsManager
+        dataManager = AppBeans.get(DataManager)
+        configStorage = AppBeans.get(ConfigStorageAPI)
+        luceneSearcher = AppBeans.get(LuceneSearcher)
+
+        luceneIndexer = ftsManagerTarget.@luceneIndexer
+        failingIndexer = new FailingLuceneIndexer(target: luceneIndexer)
+        ftsManagerTarget.@luceneIndexer = failingIndexer
+
+        configStorage.setDbProperty('fts.indexingMaxAttempts', '2')
+        configStorage.setDbProperty('fts.indexingRetryDelay', '0')
+        ftsManager.setEnabled(true)
+        ftsManager.resetIndexingAttempts()
+        clearData()
+    }
+
+    void cleanup() {
+        ftsManagerTarget.@luceneIndexer = luceneIndexer
+        configStorage.setDbProperty('fts.indexingMaxAttempts', null)
+        configStorage.setDbProperty('fts.indexingRetryDelay', null)
+        ftsManager.resetIndexingAttempts()
+        ftsManager.setEnabled(false)
+        clearData()
+    }
+
+    def "item failing the maximum number of attempts is moved to the dead letter state and can be retried"() {
+        setup:
+
+        MainEntity failing = commitEntity('deadLetterFailing')
+        commitEntity('deadLetterIndexed')
+        failingIndexer.failingIds.add(failing.id)
+
+        when: "the item is retried without a delay"
+
+        long deadline = System.currentTimeMillis() + 10000
+        while (ftsManager.getDeadLetterItems(10).isEmpty() && System.currentTimeMillis() < deadline) {
+            processQueue()
+        }
+
+        then: "the other change is indexed, the failed item is kept with the fake flag"
+
+        search('deadLetterIndexed').size() == 1
+        search('deadLetterFailing').isEmpty()
+        List<FtsQueue> deadLetterItems = ftsManager.getDeadLetterItems(10)
+        deadLetterItems.size() == 1
+        deadLetterItems[0].objectEntityId == failing.id
+        ftsManager.processQueue() == 0
+
+        when:
+
+        failingIndexer.failingIds.clear()
+        int retried = ftsManager.retryDeadLetterItems()
+        processQueue()
+
+        then:
+
+        retried == 1
+        search('deadLetterFailing').size() == 1
+        ftsManager.getDeadLetterItems(10).isEmpty()
+        queueSize() == 0
+    }
+
+    MainEntity commitEntity(String name) {
+        MainEntity entity = metadata.create(MainEntity)
+        entity.name = name
+        entity.description = name
+        return dataManager.commit(entity)
+    }
+
+    List search(String term) {
+        return luceneSearcher.searchAllField(term, ['ftstest$MainEntity'])
+    }
+
+    void processQueue() {
+        Integer count = null
+        while (count == null || count > 0) {
+            count = ftsManager.processQueue()
+        }
+    }
+
+    int queueSize() {
+        return new QueryRunner(persistence.getDataSource())
+                .query("select count(*) from SYS_FTS_QUEUE", { rs -> rs.next() ? rs.getInt(1) : 0 })
+    }
+
+    protected void clearData() {
+        new QueryRunner(persistence.getDataSource()).update("delete from FTS_TEST_MAIN_ENTITY")
+        new QueryRunner(persistence.getDataSource()).update("delete from SYS_FTS_QUEUE")
+    }
+
+    /**
+     * Reports the items of the given instances as not indexed
+     */
+    static class FailingLuceneIndexer implements LuceneIndexer {
+
+        @Delegate
+        LuceneIndexer target
+
+        Set<Object> failingIds = Collections.synchronizedSet(new HashSet<Object>())
+
+        @Override
+        List<FtsQueue> indexEntities(String entityName, List<FtsQueue> items, IndexWriter writer,
+                                     Collection<FtsQueue> postponed) {
+            List<FtsQueue> failed = items.findAll { failingIds.contains(it.objectEntityId) }
+            List<FtsQueue> indexed = items.findAll { !failingIds.contains(it.objectEntityId) }
+            if (!indexed.isEmpty()) {
+                failed.addAll(target.indexEntities(entityName, indexed, writer, postponed))
+            }
+            return failed
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2008-2019 Haulmont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package spec
+
+import com.haulmont.bali.db.QueryRunner
+import com.haulmont.cuba.core.Persistence
+import com.haulmont.cuba.core.app.ConfigStorageAPI
+import com.haulmont.cuba.core.app.FtsSender
+import com.haulmont.cuba.core.entity.FtsQueue
+import com.haulmont.cuba.core.global.AppBeans
+import com.haulmont.cuba.core.global.DataManager
+import com.haulmont.cuba.core.global.Metadata
+import com.haulmont.fts.FtsTestContainer
+import com.haulmont.fts.core.app.FtsManagerAPI
+import com.haulmont.fts.core.app.FtsSenderBean
+import com.haulmont.fts.core.sys.LuceneSearcher
+import com.haulmont.fts.testmodel.searchresult.MainEntity
+import org.junit.ClassRule
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class InMemoryQueueTest extends Specification {
+
+    @Shared
+    @ClassRule
+    public FtsTestContainer cont = FtsTestContainer.Common.INSTANCE
+
+    private Persistence persistence
+    private Metadata metadata
+    private FtsManagerAPI ftsManager
+    private FtsSenderBean ftsSender
+    private DataManager dataManager
+    private ConfigStorageAPI configStorage
+    private LuceneSearcher luceneSearcher
+    private RecordingFtsManager recordingManager
+
+    void setup() {
+        persistence = cont.persistence()
+        metadata = cont.metadata()
+        ftsManager = AppBeans.get(FtsManagerAPI)
+        ftsSender = (FtsSenderBean) AppBeans.get(FtsSender)
+        dataManager = AppBeans.get(DataManager)
+        configStorage = AppBeans.get(ConfigStorageAPI)
+        luceneSearcher = AppBeans.get(LuceneSearcher)
+
+        recordingManager = new RecordingFtsManager(target: ftsManager)
+        ftsSender.setManager(recordingManager)
+        configStorage.setDbProperty('fts.inMemoryQueueEnabled', 'true')
+        ftsManager.setEnabled(true)
+        clearData()
+    }
+
+    void cleanup() {
+        ftsSender.setManager(ftsManager)
+        configStorage.setDbProperty('fts.inMemoryQueueEnabled', null)
+        configStorage.setDbProperty('fts.queueBatchingEnabled', null)
+        ftsManager.setEnabled(false)
+        clearData()
+    }
+
+    @Unroll
+    def "committed entity change is passed to the in-memory queue, batching enabled: #batching"() {
+        setup:
+
+        configStorage.setDbProperty('fts.queueBatchingEnabled', String.valueOf(batching))
+
+        when:
+
+        MainEntity entity = metadata.create(MainEntity)
+        entity.name = 'inMemoryQueue'
+        entity.description = 'inMemoryQueue'
+        dataManager.commit(entity)
+
+        then:
+
+        recordingManager.committedChanges.any {
+            it.entityName == 'ftstest$MainEntity' && it.objectEntityId == entity.id
+        }
+
+        when:
+
+        processQueue()
+
+        then:
+
+        luceneSearcher.searchAllField('inMemoryQueue', ['ftstest$MainEntity']).size() == 1
+        queueSize() == 0
+
+        where:
+
+        batching << [true, false]
+    }
+
+    void processQueue() {
+        // the changes may be being indexed by the background processing started after the commit
+        long deadline = System.currentTimeMillis() + 10000
+        while (queueSize() > 0 && System.currentTimeMillis() < deadline) {
+            if (ftsManager.processQueue() == 0) {
+                Thread.sleep(100)
+            }
+        }
+    }
+
+    int queueSize() {
+        return new QueryRunner(persistence.getDataSource())
+                .query("select count(*) from SYS_FTS_QUEUE", { rs -> rs.next() ? rs.getInt(1) : 0 })
+    }
+
+    protected void clearData() {
+        new QueryRunner(persistence.getDataSource()).update("delete from FTS_TEST_MAIN_ENTITY")
+        new QueryRunner(persistence.getDataSource()).update("delete from SYS_FTS_QUEUE")
+    }
+
+    /**
+     * Records the changes passed to the in-memory queue and passes them to the manager
+     */
+    static class RecordingFtsManager implements FtsManagerAPI {
+
+        @Delegate
+        FtsManagerAPI target
+
+        List<FtsQueue> committedChanges = Collections.synchronizedList(new ArrayList<FtsQueue>())
+
+        @Override
+        void addCommittedChanges(List<FtsQueue> items) {
+            committedChanges.addAll(items)
+            target.addCommittedChanges(items)
+        }
+    }
+}
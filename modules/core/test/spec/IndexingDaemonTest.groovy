@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2008-2019 Haulmont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package spec
+
+import com.haulmont.bali.db.QueryRunner
+import com.haulmont.cuba.core.Persistence
+import com.haulmont.cuba.core.app.ConfigStorageAPI
+import com.haulmont.cuba.core.global.AppBeans
+import com.haulmont.cuba.core.global.DataManager
+import com.haulmont.cuba.core.global.Metadata
+import com.haulmont.fts.FtsTestContainer
+import com.haulmont.fts.core.app.FtsIndexingDaemon
+import com.haulmont.fts.core.app.FtsIndexingDaemonBean
+import com.haulmont.fts.core.app.FtsManagerAPI
+import com.haulmont.fts.core.sys.LuceneSearcher
+import com.haulmont.fts.testmodel.searchresult.MainEntity
+import org.junit.ClassRule
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class IndexingDaemonTest extends Specification {
+
+    @Shared
+    @ClassRule
+    public FtsTestContainer cont = FtsTestContainer.Common.INSTANCE
+
+    private Persistence persistence
+    private Metadata metadata
+    private FtsManagerAPI ftsManager
+    private FtsIndexingDaemonBean indexingDaemon
+    private DataManager dataManager
+    private ConfigStorageAPI configStorage
+    private LuceneSearcher luceneSearcher
+
+    void setup() {
+        persistence = cont.persistence()
+        metadata = cont.metadata()
+        ftsManager = AppBeans.get(FtsManagerAPI)
+        indexingDaemon = (FtsIndexingDaemonBean) AppBeans.get(FtsIndexingDaemon)
+        dataManager = AppBeans.get(DataManager)
+        configStorage = AppBeans.get(ConfigStorageAPI)
+        luceneSearcher = AppBeans.get(LuceneSearcher)
+
+        ftsManager.setEnabled(true)
+        clearData()
+
+        // the poll interval is longer than the test waits, so the changes are indexed only if the daemon is woken up
+        configStorage.setDbProperty('fts.indexingDaemonEnabled', 'true')
+        configStorage.setDbProperty('fts.indexingDaemonPollInterval', '60000')
+        indexingDaemon.start()
+    }
+
+    void cleanup() {
+        indexingDaemon.stop()
+        configStorage.setDbProperty('fts.indexingDaemonEnabled', null)
+        configStorage.setDbProperty('fts.indexingDaemonPollInterval', null)
+        configStorage.setDbProperty('fts.queueBatchingEnabled', null)
+        ftsManager.setEnabled(false)
+        clearData()
+    }
+
+    @Unroll
+    def "daemon is woken up by a committed entity change, batching enabled: #batching"() {
+        setup:
+
+        configStorage.setDbProperty('fts.queueBatchingEnabled', String.valueOf(batching))
+        // the daemon waits for changes after processing the empty queue
+        awaitQueueProcessed()
+
+        when:
+
+        MainEntity entity = metadata.create(MainEntity)
+        entity.name = 'indexingDaemon'
+        entity.description = 'indexingDaemon'
+        dataManager.commit(entity)
+
+        then:
+
+        awaitQueueProcessed()
+        luceneSearcher.searchAllField('indexingDaemon', ['ftstest$MainEntity']).size() == 1
+
+        where:
+
+        batching << [true, false]
+    }
+
+    boolean awaitQueueProcessed() {
+        long deadline = System.currentTimeMillis() + 10000
+        while (queueSize() > 0 || ftsManager.isWriting()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false
+            }
+            Thread.sleep(100)
+        }
+        return true
+    }
+
+    int queueSize() {
+        return new QueryRunner(persistence.getDataSource())
+                .query("select count(*) from SYS_FTS_QUEUE", { rs -> rs.next() ? rs.getInt(1) : 0 })
+    }
+
+    protected void clearData() {
+        new QueryRunner(persistence.getDataSource()).update("delete from FTS_TEST_MAIN_ENTITY")
+        new QueryRunner(persistence.getDataSource()).update("delete from SYS_FTS_QUEUE")
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2008-2019 Haulmont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package spec
+
+import com.haulmont.bali.db.QueryRunner
+import com.haulmont.cuba.core.Persistence
+import com.haulmont.cuba.core.app.ConfigStorageAPI
+import com.haulmont.cuba.core.global.AppBeans
+import com.haulmont.cuba.core.global.DataManager
+import com.haulmont.cuba.core.global.Metadata
+import com.haulmont.fts.FtsTestContainer
+import com.haulmont.fts.core.app.FtsManagerAPI
+import com.haulmont.fts.core.sys.LuceneSearcher
+import com.haulmont.fts.testmodel.searchresult.MainEntity
+import org.junit.ClassRule
+import spock.lang.Shared
+import spock.lang.Specification
+
+class QueueClaimingTest extends Specification {
+
+    @Shared
+    @ClassRule
+    public FtsTestContainer cont = FtsTestContainer.Common.INSTANCE
+
+    private Persistence persistence
+    private Metadata metadata
+    private FtsManagerAPI ftsManager
+    private DataManager dataManager
+    private ConfigStorageAPI configStorage
+    private LuceneSearcher luceneSearcher
+
+    void setup() {
+        persistence = cont.persistence()
+        metadata = cont.metadata()
+        ftsManager = AppBeans.get(FtsManagerAPI)
+        dataManager = AppBeans.get(DataManager)
+        configStorage = AppBeans.get(ConfigStorageAPI)
+        luceneSearcher = AppBeans.get(LuceneSearcher)
+
+        configStorage.setDbProperty('fts.queueClaimingEnabled', 'true')
+        ftsManager.setEnabled(true)
+        clearData()
+    }
+
+    void cleanup() {
+        configStorage.setDbProperty('fts.queueClaimingEnabled', null)
+        configStorage.setDbProperty('fts.queueClaimTimeout', null)
+        ftsManager.setEnabled(false)
+        clearData()
+    }
+
+    def "claimed items are indexed and removed from the queue"() {
+        setup:
+
+        commitEntity('claimedItem')
+
+        when:
+
+        processQueue()
+
+        then:
+
+        search('claimedItem').size() == 1
+        queueSize() == 0
+    }
+
+    def "items claimed by another consumer are skipped until the claim expires"() {
+        setup:
+
+        commitEntity('otherConsumerItem')
+        // the claim token format: prefix, claim time padded to 13 digits, consumer
+        String token = String.format('~claim|%013d|otherConsumer|0', System.currentTimeMillis() - 1000)
+        new QueryRunner(persistence.getDataSource()).update("update SYS_FTS_QUEUE set INDEXING_HOST = ?", token)
+
+        when:
+
+        int count = ftsManager.processQueue()
+
+        then:
+
+        count == 0
+        search('otherConsumerItem').isEmpty()
+        queueSize() == 1
+
+        when:
+
+        configStorage.setDbProperty('fts.queueClaimTimeout', '500')
+        processQueue()
+
+        then:
+
+        search('otherConsumerItem').size() == 1
+        queueSize() == 0
+    }
+
+    MainEntity commitEntity(String name) {
+        MainEntity entity = metadata.create(MainEntity)
+        entity.name = name
+        entity.description = name
+        return dataManager.commit(entity)
+    }
+
+    List search(String term) {
+        return luceneSearcher.searchAllField(term, ['ftstest$MainEntity'])
+    }
+
+    void processQueue() {
+        Integer count = null
+        while (count == null || count > 0) {
+            count = ftsManager.processQueue()
+        }
+    }
+
+    int queueSize() {
+        return new QueryRunner(persistence.getDataSource())
+                .query("select count(*) from SYS_FTS_QUEUE", { rs -> rs.next() ? rs.getInt(1) : 0 })
+    }
+
+    protected void clearData() {
+        new QueryRunner(persistence.getDataSource()).update("delete from FTS_TEST_MAIN_ENTITY")
+        new QueryRunner(persistence.getDataSource()).update("delete from SYS_FTS_QUEUE")
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2008-2019 Haulmont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package spec
+
+import com.haulmont.bali.db.QueryRunner
+import com.haulmont.cuba.core.Persistence
+import com.haulmont.cuba.core.app.ConfigStorageAPI
+import com.haulmont.cuba.core.app.FtsSender
+import com.haulmont.cuba.core.entity.FtsChangeType
+import com.haulmont.cuba.core.global.AppBeans
+import com.haulmont.cuba.core.global.DataManager
+import com.haulmont.cuba.core.global.Metadata
+import com.haulmont.fts.FtsTestContainer
+import com.haulmont.fts.core.app.FtsManagerAPI
+import com.haulmont.fts.core.sys.LuceneSearcher
+import com.haulmont.fts.testmodel.searchresult.MainEntity
+import org.junit.ClassRule
+import spock.lang.Shared
+import spock.lang.Specification
+
+class QueueLanesTest extends Specification {
+
+    @Shared
+    @ClassRule
+    public FtsTestContainer cont = FtsTestContainer.Common.INSTANCE
+
+    private Persistence persistence
+    private Metadata metadata
+    private FtsManagerAPI ftsManager
+    private FtsSender ftsSender
+    private DataManager dataManager
+    private ConfigStorageAPI configStorage
+    private LuceneSearcher luceneSearcher
+
+    void setup() {
+        persistence = cont.persistence()
+        metadata = cont.metadata()
+        ftsManager = AppBeans.get(FtsManagerAPI)
+        ftsSender = AppBeans.get(FtsSender)
+        dataManager = AppBeans.get(DataManager)
+        configStorage = AppBeans.get(ConfigStorageAPI)
+        luceneSearcher = AppBeans.get(LuceneSearcher)
+
+        ftsManager.setEnabled(true)
+        clearData()
+    }
+
+    void cleanup() {
+        configStorage.setDbProperty('fts.reindexQueueShare', null)
+        ftsManager.setEnabled(false)
+        clearData()
+    }
+
+    def "user change queued after reindex items is indexed in the first batch"() {
+        setup:
+
+        configStorage.setDbProperty('fts.reindexQueueShare', '50')
+        List<MainEntity> entities = (1..5).collect { commitEntity('reindexLane' + it) }
+        processQueue()
+        persistence.runInTransaction({ em ->
+            entities.each { ftsSender.enqueue('ftstest$MainEntity', it.id, FtsChangeType.INSERT) }
+        })
+        commitEntity('interactiveLane')
+
+        when:
+
+        int count = ftsManager.processQueue(2)
+
+        then: "the batch contains one item of each lane"
+
+        count == 2
+        search('interactiveLane').size() == 1
+        queueSize() == 4
+    }
+
+    MainEntity commitEntity(String name) {
+        MainEntity entity = metadata.create(MainEntity)
+        entity.name = name
+        entity.description = name
+        return dataManager.commit(entity)
+    }
+
+    List search(String term) {
+        return luceneSearcher.searchAllField(term, ['ftstest$MainEntity'])
+    }
+
+    void processQueue() {
+        Integer count = null
+        while (count == null || count > 0) {
+            count = ftsManager.processQueue()
+        }
+    }
+
+    int queueSize() {
+        return new QueryRunner(persistence.getDataSource())
+                .query("select count(*) from SYS_FTS_QUEUE", { rs -> rs.next() ? rs.getInt(1) : 0 })
+    }
+
+    protected void clearData() {
+        new QueryRunner(persistence.getDataSource()).update("delete from FTS_TEST_MAIN_ENTITY")
+        new QueryRunner(persistence.getDataSource()).update("delete from SYS_FTS_QUEUE")
+    }
+}
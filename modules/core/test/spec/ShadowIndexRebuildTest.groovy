@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2008-2019 Haulmont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package spec
+
+import com.haulmont.bali.db.QueryRunner
+import com.haulmont.cuba.core.Persistence
+import com.haulmont.cuba.core.app.ConfigStorageAPI
+import com.haulmont.cuba.core.entity.FtsQueue
+import com.haulmont.cuba.core.global.AppBeans
+import com.haulmont.cuba.core.global.DataManager
+import com.haulmont.cuba.core.global.Metadata
+import com.haulmont.fts.FtsTestContainer
+import com.haulmont.fts.core.app.FtsManagerAPI
+import com.haulmont.fts.core.sys.DirectoryProvider
+import com.haulmont.fts.core.sys.LuceneIndexer
+import com.haulmont.fts.core.sys.LuceneSearcher
+import com.haulmont.fts.testmodel.searchresult.MainEntity
+import org.apache.lucene.index.IndexWriter
+import org.junit.ClassRule
+import org.springframework.aop.framework.Advised
+import spock.lang.Shared
+import spock.lang.Specification
+
+import java.nio.file.Files
+
+class ShadowIndexRebuildTest extends Specification {
+
+    @Shared
+    @ClassRule
+    public FtsTestContainer cont = FtsTestContainer.Common.INSTANCE
+
+    private Persistence persistence
+    private Metadata metadata
+    private FtsManagerAPI ftsManager
+    private Object ftsManagerTarget
+    private DataManager dataManager
+    private ConfigStorageAPI configStorage
+    private DirectoryProvider directoryProvider
+    private LuceneSearcher luceneSearcher
+    private LuceneIndexer luceneIndexer
+    private HookLuceneIndexer hookIndexer
+
+    void setup() {
+        persistence = cont.persistence()
+        metadata = cont.metadata()
+        ftsManager = AppBeans.get(FtsManagerAPI)
+        ftsManagerTarget = ftsManager instanceof Advised ? ((Advised) ftsManager).targetSource.target : ftsManager
+        dataManager = AppBeans.get(DataManager)
+        configStorage = AppBeans.get(ConfigStorageAPI)
+        directoryProvider = AppBeans.get(DirectoryProvider)
+        luceneSearcher = AppBeans.get(LuceneSearcher)
+
+        luceneIndexer = ftsManagerTarget.@luceneIndexer
+        hookIndexer = new HookLuceneIndexer(target: luceneIndexer)
+        ftsManagerTarget.@luceneIndexer = hookIndexer
+
+        ftsManager.setEnabled(true)
+        clearData()
+    }
+
+    void cleanup() {
+        ftsManagerTarget.@luceneIndexer = luceneIndexer
+        configStorage.setDbProperty('fts.reindexBatchSize', null)
+        ftsManager.setEnabled(false)
+        clearData()
+    }
+
+    def "index is replaced with an index built from the database"() {
+        setup:
+
+        commitEntity('shadowKept')
+        MainEntity stale = commitEntity('shadowStale')
+        processQueue()
+        // the instance is removed without queueing the change, so only a new index doesn't contain it
+        new QueryRunner(persistence.getDataSource()).update("delete from FTS_TEST_MAIN_ENTITY where ID = ?",
+                stale.id.toString())
+
+        assert search('shadowStale').size() == 1
+
+        when:
+
+        int count = ftsManager.rebuildIndex()
+
+        then:
+
+        count > 0
+        search('shadowKept').size() == 1
+        search('shadowStale').isEmpty()
+        !Files.exists(directoryProvider.getShadowIndexPath())
+
+        when: "a change is indexed after the replacement"
+
+        commitEntity('shadowAfterSwap')
+        processQueue()
+
+        then:
+
+        search('shadowAfterSwap').size() == 1
+    }
+
+    def "instance changed during the rebuild is indexed again in the new index"() {
+        setup:
+
+        // each instance is written to the new index by a separate call of the indexer
+        configStorage.setDbProperty('fts.reindexBatchSize', '1')
+        List<MainEntity> entities = [commitEntity('shadowFirst'), commitEntity('shadowSecond')]
+                .sort { it.id.toString() }
+        processQueue()
+
+        MainEntity first = entities[0]
+        // the first instance is changed after it has been written to the new index
+        hookIndexer.afterInstance(first.id) {
+            MainEntity reloaded = dataManager.reload(first, '_local')
+            reloaded.description = 'shadowChanged'
+            dataManager.commit(reloaded)
+            processQueue()
+        }
+
+        when:
+
+        ftsManager.rebuildIndex()
+
+        then:
+
+        hookIndexer.hook == null
+        search('shadowChanged').size() == 1
+        queueSize() == 0
+    }
+
+    def "index is not rebuilt if FTS is disabled"() {
+        setup:
+
+        ftsManager.setEnabled(false)
+
+        expect:
+
+        ftsManager.rebuildIndex() == 0
+    }
+
+    MainEntity commitEntity(String name) {
+        MainEntity entity = metadata.create(MainEntity)
+        entity.name = name
+        entity.description = name
+        return dataManager.commit(entity)
+    }
+
+    List search(String term) {
+        return luceneSearcher.searchAllField(term, ['ftstest$MainEntity'])
+    }
+
+    void processQueue() {
+        Integer count = null
+        while (count == null || count > 0) {
+            count = ftsManager.processQueue()
+        }
+    }
+
+    int queueSize() {
+        return new QueryRunner(persistence.getDataSource())
+                .query("select count(*) from SYS_FTS_QUEUE", { rs -> rs.next() ? rs.getInt(1) : 0 })
+    }
+
+    protected void clearData() {
+        new QueryRunner(persistence.getDataSource()).update("delete from FTS_TEST_MAIN_ENTITY")
+        new QueryRunner(persistence.getDataSource()).update("delete from SYS_FTS_QUEUE")
+    }
+
+    /**
+     * Runs a hook once on the call of the indexer that follows the call indexing the given instance
+     */
+    static class HookLuceneIndexer implements LuceneIndexer {
+
+        @Delegate
+        LuceneIndexer target
+
+        Object instanceId
+
+        volatile boolean instanceIndexed
+
+        volatile Closure hook
+
+        void afterInstance(Object instanceId, Closure hook) {
+            this.instanceId = instanceId
+            this.hook = hook
+        }
+
+        @Override
+        List<FtsQueue> indexEntities(String entityName, List<FtsQueue> items, IndexWriter writer,
+                                     Collection<FtsQueue> postponed) {
+            Closure currentHook = hook
+            if (currentHook != null && instanceIndexed) {
+                hook = null
+                currentHook.call()
+            }
+            List<FtsQueue> notIndexed = target.indexEntities(entityName, items, writer, postponed)
+            if (items.any { it.objectEntityId == instanceId }) {
+                instanceIndexed = true
+            }
+            return notIndexed
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2008-2019 Haulmont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package spec
+
+import com.haulmont.bali.db.QueryRunner
+import com.haulmont.cuba.core.Persistence
+import com.haulmont.cuba.core.app.ConfigStorageAPI
+import com.haulmont.cuba.core.app.ServerInfoAPI
+import com.haulmont.cuba.core.app.UniqueNumbersAPI
+import com.haulmont.cuba.core.entity.FtsQueue
+import com.haulmont.cuba.core.global.AppBeans
+import com.haulmont.cuba.core.global.DataManager
+import com.haulmont.cuba.core.global.Metadata
+import com.haulmont.fts.FtsTestContainer
+import com.haulmont.fts.core.app.FtsManagerAPI
+import com.haulmont.fts.core.sys.LuceneSearcher
+import com.haulmont.fts.core.sys.SharedQueueIds
+import com.haulmont.fts.testmodel.searchresult.MainEntity
+import org.junit.ClassRule
+import spock.lang.Shared
+import spock.lang.Specification
+
+class SharedQueueTest extends Specification {
+
+    @Shared
+    @ClassRule
+    public FtsTestContainer cont = FtsTestContainer.Common.INSTANCE
+
+    private Persistence persistence
+    private Metadata metadata
+    private FtsManagerAPI ftsManager
+    private DataManager dataManager
+    private ConfigStorageAPI configStorage
+    private UniqueNumbersAPI uniqueNumbers
+    private LuceneSearcher luceneSearcher
+    private String serverId
+
+    void setup() {
+        persistence = cont.persistence()
+        metadata = cont.metadata()
+        ftsManager = AppBeans.get(FtsManagerAPI)
+        dataManager = AppBeans.get(DataManager)
+        configStorage = AppBeans.get(ConfigStorageAPI)
+        uniqueNumbers = AppBeans.get(UniqueNumbersAPI)
+        luceneSearcher = AppBeans.get(LuceneSearcher)
+        serverId = AppBeans.get(ServerInfoAPI).getServerId()
+
+        // the other host never processes the queue, so the items of the shared queue are kept
+        configStorage.setDbProperty('fts.indexingHosts', serverId + ',otherHost')
+        configStorage.setDbProperty('fts.sharedQueueEnabled', 'true')
+        ftsManager.setEnabled(true)
+        clearData()
+    }
+
+    void cleanup() {
+        configStorage.setDbProperty('fts.indexingHosts', null)
+        configStorage.setDbProperty('fts.sharedQueueEnabled', null)
+        configStorage.setDbProperty('fts.sharedQueueGapTimeout', null)
+        ftsManager.setEnabled(false)
+        clearData()
+    }
+
+    def "change is queued once with a number and processed once by the host"() {
+        when:
+
+        MainEntity entity = commitEntity('sharedQueueItem')
+
+        then:
+
+        List<FtsQueue> items = loadQueueItems()
+        items.size() == 1
+        items[0].indexingHost == null
+        items[0].objectEntityId == entity.id
+        SharedQueueIds.getNumber(items[0].id) > 0
+
+        when:
+
+        processQueue()
+
+        then:
+
+        search('sharedQueueItem').size() == 1
+        // the item is kept for the other host, but this host has passed it
+        loadQueueItems().size() == 1
+        ftsManager.processQueue() == 0
+    }
+
+    def "items following a missing number wait for the gap timeout"() {
+        setup:
+
+        configStorage.setDbProperty('fts.sharedQueueGapTimeout', '600000')
+        commitEntity('sharedQueueBeforeGap')
+        processQueue()
+
+        when: "a number is taken by a transaction that is not committed"
+
+        uniqueNumbers.getNextNumber(SharedQueueIds.INTERACTIVE_SEQUENCE)
+        commitEntity('sharedQueueAfterGap')
+
+        then:
+
+        ftsManager.processQueue() == 0
+        search('sharedQueueAfterGap').isEmpty()
+
+        when:
+
+        configStorage.setDbProperty('fts.sharedQueueGapTimeout', '0')
+        processQueue()
+
+        then:
+
+        search('sharedQueueAfterGap').size() == 1
+    }
+
+    MainEntity commitEntity(String name) {
+        MainEntity entity = metadata.create(MainEntity)
+        entity.name = name
+        entity.description = name
+        return dataManager.commit(entity)
+    }
+
+    List<FtsQueue> loadQueueItems() {
+        return persistence.callInTransaction({ em ->
+            em.createQuery('select q from sys$FtsQueue q', FtsQueue).getResultList()
+        })
+    }
+
+    List search(String term) {
+        return luceneSearcher.searchAllField(term, ['ftstest$MainEntity'])
+    }
+
+    void processQueue() {
+        Integer count = null
+        while (count == null || count > 0) {
+            count = ftsManager.processQueue()
+        }
+    }
+
+    protected void clearData() {
+        new QueryRunner(persistence.getDataSource()).update("delete from FTS_TEST_MAIN_ENTITY")
+        new QueryRunner(persistence.getDataSource()).update("delete from SYS_FTS_QUEUE")
+    }
+}
@@ -21,5 +21,11 @@ public enum FtsSearchOption {
     /**
      * Indicates that hit infos should be loaded
      */
-    POPULATE_HIT_INFOS;
+    POPULATE_HIT_INFOS,
+
+    /**
+     * Indicates that the search should wait until changes made by the current user before the search are indexed and
+     * visible to searches. Instances queued by a reindex are not waited for. The waiting time is limited by {@link com.haulmont.fts.global.FtsConfig#getSearchWaitTimeout()}
+     */
+    WAIT_FOR_PENDING_CHANGES;
 }
@@ -20,6 +20,7 @@ import com.haulmont.cuba.core.config.Config;
 import com.haulmont.cuba.core.config.Property;
 import com.haulmont.cuba.core.config.Source;
 import com.haulmont.cuba.core.config.SourceType;
+import com.haulmont.cuba.core.config.defaults.Default;
 import com.haulmont.cuba.core.config.defaults.DefaultBoolean;
 import com.haulmont.cuba.core.config.defaults.DefaultInt;
 import com.haulmont.cuba.core.config.type.Factory;
@@ -39,6 +40,141 @@ public interface FtsConfig extends Config {
     @DefaultInt(300)
     int getIndexingBatchSize();
 
+    /**
+     * Specifies whether changes committed on this server are passed to the indexing in memory and indexed
+     * immediately. The queue items are still stored in the database and are removed after the changes are committed
+     * to the index. Used only if neither {@link #getIndexingHosts()} nor {@link #getQueueClaimingEnabled()} is set.
+     */
+    @Property("fts.inMemoryQueueEnabled")
+    @DefaultBoolean(false)
+    boolean getInMemoryQueueEnabled();
+
+    /**
+     * Maximum number of changes waiting in the in-memory queue. Further changes are only loaded from the database.
+     */
+    @Property("fts.inMemoryQueueMaxSize")
+    @DefaultInt(10000)
+    int getInMemoryQueueMaxSize();
+
+    /**
+     * Specifies whether the queue is processed continuously by a background thread instead of a scheduled task only.
+     * The thread is woken up when changes are queued on the same server.
+     */
+    @Property("fts.indexingDaemonEnabled")
+    @DefaultBoolean(false)
+    boolean getIndexingDaemonEnabled();
+
+    /**
+     * Interval in milliseconds of polling the queue by the indexing daemon if no changes are queued on the same
+     * server. Also the pause after the daemon has been suspended.
+     */
+    @Property("fts.indexingDaemonPollInterval")
+    @DefaultInt(5000)
+    int getIndexingDaemonPollInterval();
+
+    /**
+     * Percentage of the maximum heap size, occupied after the last garbage collection, above which the indexing daemon
+     * suspends processing
+     */
+    @Property("fts.indexingDaemonMaxHeapUsage")
+    @DefaultInt(90)
+    int getIndexingDaemonMaxHeapUsage();
+
+    /**
+     * Time in milliseconds of loading the next batch of the queue above which the database is considered overloaded
+     * and the indexing daemon suspends processing for the poll interval. 0 disables the check.
+     */
+    @Property("fts.indexingDaemonMaxQueueLoadTime")
+    @DefaultInt(2000)
+    int getIndexingDaemonMaxQueueLoadTime();
+
+    /**
+     * Delay in milliseconds before the first retry of a queue item that failed to be indexed. The delay is doubled on
+     * each next attempt.
+     */
+    @Property("fts.indexingRetryDelay")
+    @DefaultInt(10000)
+    int getIndexingRetryDelay();
+
+    /**
+     * Number of failed attempts to index a queue item after which it is kept in the queue but not processed anymore
+     */
+    @Property("fts.indexingMaxAttempts")
+    @DefaultInt(5)
+    int getIndexingMaxAttempts();
+
+    /**
+     * Time in milliseconds that processing a batch of the queue should take. If set, the batch size is adapted to the
+     * average indexing time of each entity measured by previous batches. Applies to the scheduled processing and to
+     * the indexing daemon.
+     */
+    @Property("fts.indexingBatchTime")
+    @DefaultInt(0)
+    int getIndexingBatchTime();
+
+    /**
+     * Memory in megabytes that documents created for a batch of the queue should take. If set, the batch size is
+     * adapted to the average document size of each entity measured by previous batches.
+     */
+    @Property("fts.indexingBatchMemory")
+    @DefaultInt(0)
+    int getIndexingBatchMemory();
+
+    /**
+     * Maximum size of a batch if the batch size is adapted to {@link #getIndexingBatchTime()} or
+     * {@link #getIndexingBatchMemory()}
+     */
+    @Property("fts.indexingMaxBatchSize")
+    @DefaultInt(5000)
+    int getIndexingMaxBatchSize();
+
+    /**
+     * @return number of threads that build lucene documents for a batch of queued items. If the value is 1, items are
+     * indexed sequentially in the thread that processes the queue.
+     */
+    @Property("fts.indexingThreads")
+    @DefaultInt(1)
+    int getIndexingThreads();
+
+    /**
+     * @return minimum interval in milliseconds between durable commits of the index. Changes are visible to searches
+     * right after the batch is processed, but processed queue items are removed only when the index is committed. If
+     * the value is 0, the index is committed after every processed batch.
+     */
+    @Property("fts.commitInterval")
+    @DefaultInt(0)
+    int getCommitInterval();
+
+    /**
+     * @return number of processed but not committed queue items that causes the index commit before the
+     * {@link #getCommitInterval()} elapses
+     */
+    @Property("fts.commitMaxPendingItems")
+    @DefaultInt(1000)
+    int getCommitMaxPendingItems();
+
+    /**
+     * @return maximum time in milliseconds between searcher refreshes when nobody waits for the latest changes
+     */
+    @Property("fts.searcherMaxStaleTime")
+    @DefaultInt(5000)
+    int getSearcherMaxStaleTime();
+
+    /**
+     * @return time in milliseconds in which the searcher is refreshed when a search waits for the latest changes
+     */
+    @Property("fts.searcherMinStaleTime")
+    @DefaultInt(100)
+    int getSearcherMinStaleTime();
+
+    /**
+     * @return maximum time in milliseconds a search with the
+     * {@link com.haulmont.fts.app.FtsSearchOption#WAIT_FOR_PENDING_CHANGES} option waits for queued changes
+     */
+    @Property("fts.searchWaitTimeout")
+    @DefaultInt(3000)
+    int getSearchWaitTimeout();
+
     @Property("fts.indexDir")
     String getIndexDir();
 
@@ -72,14 +208,150 @@ public interface FtsConfig extends Config {
     @DefaultBoolean(true)
     boolean getFileContentIndexingEnabled();
 
+    /**
+     * Maximum number of characters extracted from a file for indexing. The rest of the file content is not indexed.
+     * 0 means no limit.
+     */
+    @Property("fts.fileContentMaxLength")
+    @DefaultInt(1000000)
+    int getFileContentMaxLength();
+
+    /**
+     * Specifies whether the text extracted from files is cached on disk next to the index directory, so the files are
+     * not parsed again on reindex
+     */
+    @Property("fts.fileContentCacheEnabled")
+    @DefaultBoolean(true)
+    boolean getFileContentCacheEnabled();
+
+    /**
+     * Maximum size of the extracted text cache in megabytes. Least recently used entries are evicted when the size is
+     * exceeded.
+     */
+    @Property("fts.fileContentCacheMaxSize")
+    @DefaultInt(1024)
+    int getFileContentCacheMaxSize();
+
+    /**
+     * Maximum time in milliseconds of the text extraction from a single file. If the time is exceeded, only the file
+     * attributes are indexed. 0 means no limit.
+     */
+    @Property("fts.fileParsingTimeout")
+    @DefaultInt(60000)
+    int getFileParsingTimeout();
+
+    /**
+     * Number of threads that extract the text from files
+     */
+    @Property("fts.fileParsingThreads")
+    @DefaultInt(2)
+    int getFileParsingThreads();
+
+    /**
+     * Maximum size of a file in megabytes whose content is indexed. Only the attributes of larger files are indexed.
+     * 0 means no limit, the length of the extracted text is still limited by {@link #getFileContentMaxLength()}.
+     */
+    @Property("fts.fileMaxSize")
+    @DefaultInt(0)
+    int getFileMaxSize();
+
+    /**
+     * Specifies whether the text is extracted from files in separate JVM processes, so a malformed file can't exhaust
+     * the memory of the application
+     */
+    @Property("fts.fileParsingForked")
+    @DefaultBoolean(false)
+    boolean getFileParsingForked();
+
+    /**
+     * Command that starts a JVM process for the text extraction, see {@link #getFileParsingForked()}
+     */
+    @Property("fts.fileParsingForkJavaCommand")
+    @Default("java -Xmx512m")
+    String getFileParsingForkJavaCommand();
+
+    /**
+     * Specifies whether changes queued in a transaction, both entity changes and changes queued explicitly, e.g. by a
+     * reindex, are collected and inserted to the queue in a single JDBC batch at the commit, several changes of the
+     * same instance being queued once. If disabled, each change is inserted as a separate item when it is queued.
+     */
+    @Property("fts.queueBatchingEnabled")
+    @DefaultBoolean(true)
+    boolean getQueueBatchingEnabled();
+
+    /**
+     * Maximum number of processed items removed from the queue by a single statement. If not set, the size depends
+     * on the database limits on statement parameters.
+     */
+    @Property("fts.queueDeleteChunkSize")
+    @DefaultInt(0)
+    int getQueueDeleteChunkSize();
+
     @Property("fts.indexingHosts")
     @Factory(factory = StringListTypeFactory.class)
     List<String> getIndexingHosts();
 
+    /**
+     * Specifies whether queue items are claimed by a consumer before processing, so several consumers can process a
+     * single queue without processing the same items. Not used if {@link #getIndexingHosts()} is specified.
+     */
+    @Property("fts.queueClaimingEnabled")
+    @DefaultBoolean(false)
+    boolean getQueueClaimingEnabled();
+
+    /**
+     * Time in milliseconds after which items claimed by a consumer can be claimed by another one, e.g. if the first
+     * consumer has been stopped
+     */
+    @Property("fts.queueClaimTimeout")
+    @DefaultInt(600000)
+    int getQueueClaimTimeout();
+
+    /**
+     * Specifies whether a change is queued once for all {@link #getIndexingHosts()} instead of once per host. Each
+     * item gets a number from a database sequence of its lane, each host keeps the number of the last processed item
+     * of each lane, items are deleted after all hosts have processed them.
+     */
+    @Property("fts.sharedQueueEnabled")
+    @DefaultBoolean(false)
+    boolean getSharedQueueEnabled();
+
+    /**
+     * Time in milliseconds that hosts wait for a missing number of the shared queue before they skip it and process
+     * the following items. A number is missing while the transaction that queued the item is not committed, numbers of
+     * rolled back transactions are missing forever. The value must therefore be at least the transaction timeout of
+     * the application.
+     */
+    @Property("fts.sharedQueueGapTimeout")
+    @DefaultInt(60000)
+    int getSharedQueueGapTimeout();
+
     @Property("fts.reindexBatchSize")
     @DefaultInt(5000)
     int getReindexBatchSize();
 
+    /**
+     * Maximum number of entities that are reindexed concurrently by reindexAll and reindexNextBatch
+     */
+    @Property("fts.reindexThreads")
+    @DefaultInt(1)
+    int getReindexThreads();
+
+    /**
+     * Maximum number of entities of the same data store that are reindexed concurrently
+     */
+    @Property("fts.reindexThreadsPerStore")
+    @DefaultInt(1)
+    int getReindexThreadsPerStore();
+
+    /**
+     * Percentage of the indexing batch given to instances queued by reindex when changes made by users are waiting in
+     * the queue too. Capacity that is not used by one kind of items is given to the other one.
+     */
+    @Property("fts.reindexQueueShare")
+    @DefaultInt(50)
+    int getReindexQueueShare();
+
     /**
      * @return the maximum number of times the search term will be added to the hit info for each field
      */